@@ -0,0 +1,43 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// A 1080p screen scaled down to BackgroundPipeline.MAX_BLUR_WIDTH, landscape and upside down
+@State(Scope.Thread)
+public class RotationBenchmark {
+
+    @Param({ "90", "180" })
+    public int degrees;
+
+    private PixelBuffer mInput;
+
+    @Setup
+    public void setUp() {
+        mInput = SyntheticImage.create(900, 1600, 1);
+    }
+
+    @Benchmark
+    public PixelBuffer rotate() {
+        return Rotation.rotate(mInput, degrees);
+    }
+}
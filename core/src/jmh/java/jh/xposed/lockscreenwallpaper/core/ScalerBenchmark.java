@@ -0,0 +1,49 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Screens from 720p to 1440p and a 12 MP photo, scaled down to
+// BackgroundPipeline.MAX_BLUR_WIDTH
+@State(Scope.Thread)
+public class ScalerBenchmark {
+
+    @Param({ "720x1280", "1080x1920", "1440x2560", "3024x4032" })
+    public String size;
+
+    private PixelBuffer mInput;
+    private PixelBuffer mOutput;
+
+    @Setup
+    public void setUp() {
+        int x = size.indexOf('x');
+        mInput = SyntheticImage.create(Integer.parseInt(size.substring(0, x)),
+                Integer.parseInt(size.substring(x + 1)), 1);
+        mOutput = new PixelBuffer(900, Math.round(mInput.height * 900f / mInput.width));
+    }
+
+    @Benchmark
+    public PixelBuffer scale() {
+        Scaler.scale(mInput, mOutput);
+        return mOutput;
+    }
+}
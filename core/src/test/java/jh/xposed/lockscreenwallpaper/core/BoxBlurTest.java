@@ -0,0 +1,83 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BoxBlurTest {
+
+    private static final int[] RADII = { 1, 2, 8, 25 };
+
+    @Test
+    public void constantImageIsUnchanged() {
+        final int color = 0xff336699;
+        for (int radius : RADII) {
+            PixelBuffer src = filled(37, 23, color);
+            PixelBuffer dst = BoxBlur.blur(src, radius);
+            for (int c : dst.pixels) {
+                assertEquals("radius " + radius, color, c);
+            }
+        }
+    }
+
+    @Test
+    public void radiusLargerThanImage() {
+        PixelBuffer src = new PixelBuffer(3, 2, new int[] {
+                0xff000000, 0xffffffff, 0xff000000,
+                0xffffffff, 0xff000000, 0xffffffff
+        });
+        PixelBuffer dst = BoxBlur.blur(src, 25);
+        for (int c : dst.pixels) {
+            assertEquals(0xff, c >>> 24);
+            // Every pixel mixes black and white
+            int channel = c & 0xff;
+            assertTrue(Integer.toHexString(c), channel > 0 && channel < 0xff);
+            // into grey, since all channels are blurred alike
+            assertEquals(c & 0xff, (c >> 8) & 0xff);
+            assertEquals(c & 0xff, (c >> 16) & 0xff);
+        }
+    }
+
+    @Test
+    public void singlePixel() {
+        for (int radius : RADII) {
+            PixelBuffer dst = BoxBlur.blur(filled(1, 1, 0x80a0b0c0), radius);
+            assertEquals("radius " + radius, 0x80a0b0c0, dst.pixels[0]);
+        }
+    }
+
+    @Test
+    public void inPlaceMatchesSeparateOutput() {
+        PixelBuffer src = SyntheticImage.create(40, 30, 7);
+        PixelBuffer expected = BoxBlur.blur(src, 6);
+        BoxBlur.blur(src, src, 6, new int[40 * 30]);
+        for (int i = 0; i < expected.pixels.length; i++) {
+            assertEquals(expected.pixels[i], src.pixels[i]);
+        }
+    }
+
+    private static PixelBuffer filled(int width, int height, int color) {
+        PixelBuffer buffer = new PixelBuffer(width, height);
+        Arrays.fill(buffer.pixels, color);
+        return buffer;
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ColorOverlayTest {
+
+    private static final int[] COLORS = {
+            0xff000000, 0xffffffff, 0xff336699, 0x80c08040, 0x00ffffff, 0xff010203
+    };
+    private static final int[] TINTS = {
+            0x7f000000, 0x7fffffff, 0x00ff0000, 0xff00ff00, 0x40123456
+    };
+
+    @Test
+    public void matchesSrcOver() {
+        for (int color : COLORS) {
+            for (int tint : TINTS) {
+                PixelBuffer buffer = new PixelBuffer(1, 1, new int[] { color });
+                ColorOverlay.apply(buffer, buffer, tint);
+                int actual = buffer.pixels[0];
+                String what = Integer.toHexString(tint) + " over " + Integer.toHexString(color);
+
+                double ta = (tint >>> 24) / 255.0;
+                double a = (color >>> 24) / 255.0;
+                assertEquals(what, (a + ta * (1 - a)) * 255, actual >>> 24, 1);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    double expected = ((color >> shift) & 0xff) * (1 - ta) + ((tint >> shift) & 0xff) * ta;
+                    assertEquals(what, expected, (actual >> shift) & 0xff, 1);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void separateOutput() {
+        PixelBuffer src = new PixelBuffer(2, 1, new int[] { 0xff000000, 0xffffffff });
+        PixelBuffer dst = new PixelBuffer(2, 1);
+        ColorOverlay.apply(src, dst, 0x7fffffff);
+        assertEquals(0xff000000, src.pixels[0]);
+        assertEquals(0xff7f7f7f, dst.pixels[0]);
+        assertEquals(0xffffffff, dst.pixels[1]);
+    }
+}
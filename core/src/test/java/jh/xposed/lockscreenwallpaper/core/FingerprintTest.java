@@ -0,0 +1,76 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class FingerprintTest {
+
+    @Test
+    public void stable() {
+        PixelBuffer a = SyntheticImage.create(64, 48, 3);
+        PixelBuffer b = SyntheticImage.create(64, 48, 3);
+        assertEquals(Fingerprint.of(a), Fingerprint.of(b));
+        assertEquals(Fingerprint.of(a), Fingerprint.of(a));
+    }
+
+    @Test
+    public void updatesInPiecesLikeOnce() {
+        PixelBuffer buffer = SyntheticImage.create(64, 48, 3);
+        int half = buffer.pixels.length / 2;
+        long hash = Fingerprint.update(Fingerprint.INITIAL, buffer.pixels, 0, half);
+        hash = Fingerprint.update(hash, buffer.pixels, half, buffer.pixels.length - half);
+        assertEquals(Fingerprint.of(buffer), hash);
+    }
+
+    @Test
+    public void ignoresAlpha() {
+        PixelBuffer buffer = SyntheticImage.create(64, 48, 3);
+        long expected = Fingerprint.of(buffer);
+        for (int i = 0; i < buffer.pixels.length; i += 7) {
+            buffer.pixels[i] &= 0x7fffffff;
+        }
+        assertEquals(expected, Fingerprint.of(buffer));
+    }
+
+    @Test
+    public void sensitiveToSmallChanges() {
+        PixelBuffer buffer = SyntheticImage.create(64, 48, 3);
+        long expected = Fingerprint.of(buffer);
+        buffer.pixels[1000] ^= 0x000001;
+        assertNotEquals(expected, Fingerprint.of(buffer));
+    }
+
+    @Test
+    public void sensitiveToContent() {
+        PixelBuffer buffer = SyntheticImage.create(64, 48, 3);
+        long expected = Fingerprint.of(buffer);
+        buffer.pixels[1000] ^= 0x100000;
+        assertNotEquals(expected, Fingerprint.of(buffer));
+    }
+
+    @Test
+    public void sensitiveToOrder() {
+        int[] pixels = { 0x102030, 0x405060 };
+        int[] swapped = { 0x405060, 0x102030 };
+        assertNotEquals(Fingerprint.update(Fingerprint.INITIAL, pixels, 0, 2),
+                Fingerprint.update(Fingerprint.INITIAL, swapped, 0, 2));
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GaussianBlurTest {
+
+    // The minimums BlurEquivalence applies on the device, res/values/integers.xml
+    private static final double MIN_PSNR = 32;
+    private static final double MIN_SSIM = 0.95;
+    private static final int MAX_RADIUS = 25;
+
+    @Test
+    public void kernelIsNormalized() {
+        for (int radius = 1; radius <= MAX_RADIUS; radius++) {
+            float[] kernel = GaussianBlur.kernel(radius);
+            assertEquals(2 * radius + 1, kernel.length);
+            float sum = 0;
+            for (float weight : kernel) {
+                sum += weight;
+            }
+            assertEquals("radius " + radius, 1f, sum, 1e-5f);
+        }
+    }
+
+    @Test
+    public void constantImageIsUnchanged() {
+        PixelBuffer src = new PixelBuffer(37, 23);
+        Arrays.fill(src.pixels, 0xff336699);
+        for (int c : GaussianBlur.blur(src, 12).pixels) {
+            assertEquals(0xff336699, c);
+        }
+    }
+
+    // The reference the blur engines are held to must not drift
+    @Test
+    public void matchesGolden() {
+        PixelBuffer src = SyntheticImage.create(64, 48, 3);
+        assertEquals(0x46da03d385fdd6aeL, Fingerprint.of(GaussianBlur.blur(src, 1)));
+        assertEquals(0xa564c0a720b03aaeL, Fingerprint.of(GaussianBlur.blur(src, 12)));
+        assertEquals(0xc9b2b7c5e47ab2f5L, Fingerprint.of(GaussianBlur.blur(src, 25)));
+    }
+
+    @Test
+    public void boxBlurIsEquivalentAtEveryRadius() {
+        PixelBuffer src = SyntheticImage.create(300, 400, 1);
+        for (int radius = 1; radius <= MAX_RADIUS; radius++) {
+            PixelBuffer reference = GaussianBlur.blur(src, radius);
+            PixelBuffer box = BoxBlur.blur(src, radius);
+            assertTrue("radius " + radius, ImageQuality.psnr(reference, box) >= MIN_PSNR);
+            assertTrue("radius " + radius, ImageQuality.ssim(reference, box) >= MIN_SSIM);
+        }
+    }
+}
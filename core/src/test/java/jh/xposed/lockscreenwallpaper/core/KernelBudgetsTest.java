@@ -0,0 +1,200 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper.core;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * The parts of PerformanceBudgets that don't need a device, so a kernel that gets
+ * slower or starts allocating fails the build. Times are multiples of a calibration
+ * pass over the same pixels on the same JVM, and the ceilings are loose: they catch
+ * a change in the cost class, like a blur whose cost grows with the radius, not a
+ * few percent.
+ */
+public class KernelBudgetsTest {
+
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final int CAMERA_WIDTH = 4000;
+    private static final int CAMERA_HEIGHT = 3000;
+    private static final int WARMUP = 5;
+    private static final int ITERATIONS = 15;
+    // Multiples of the calibration pass over the input, measured at about 100 and 5
+    private static final long BLUR_CEILING = 250;
+    private static final long SCALE_CEILING = 15;
+    private static final long BLUR_RADIUS_RATIO = 2;
+    // What the JVM may allocate around a call, the boxes of the blur for one
+    private static final long ALLOCATION_SLACK = 1024;
+
+    private static PixelBuffer sScreen;
+    private static PixelBuffer sCamera;
+
+    @BeforeClass
+    public static void createImages() {
+        sScreen = SyntheticImage.create(WIDTH, HEIGHT, 1);
+        sCamera = SyntheticImage.create(CAMERA_WIDTH, CAMERA_HEIGHT, 1);
+    }
+
+    @Test
+    public void blurWithinCeiling() {
+        long calibration = calibrationNanos(sScreen);
+        for (int radius : new int[] {1, 25}) {
+            assertWithin("blur r" + radius, blurNanos(radius), calibration * BLUR_CEILING);
+        }
+    }
+
+    @Test
+    public void blurCostIndependentOfRadius() {
+        assertWithin("blur r25", blurNanos(25), blurNanos(1) * BLUR_RADIUS_RATIO);
+    }
+
+    @Test
+    public void scaleWithinCeiling() {
+        final PixelBuffer dst = new PixelBuffer(WIDTH, WIDTH * CAMERA_HEIGHT / CAMERA_WIDTH);
+        long nanos = fastest(new BenchmarkRunner.Task() {
+            @Override
+            public void run() {
+                Scaler.scale(sCamera, dst);
+            }
+        }, BenchmarkRunner.NO_ALLOCATION_METER).nsMin;
+        assertWithin("scale", nanos, calibrationNanos(sCamera) * SCALE_CEILING);
+    }
+
+    @Test
+    public void blurAllocatesNothingPerPixel() {
+        final PixelBuffer dst = new PixelBuffer(WIDTH, HEIGHT);
+        final int[] scratch = new int[WIDTH * HEIGHT];
+        long bytes = allocatedBytes(new BenchmarkRunner.Task() {
+            @Override
+            public void run() {
+                BoxBlur.blur(sScreen, dst, 25, scratch);
+            }
+        });
+        assertWithin("blur bytes", bytes, ALLOCATION_SLACK);
+    }
+
+    @Test
+    public void scaleAllocatesOnlyColumnTables() {
+        final PixelBuffer dst = new PixelBuffer(WIDTH, WIDTH * CAMERA_HEIGHT / CAMERA_WIDTH);
+        long bytes = allocatedBytes(new BenchmarkRunner.Task() {
+            @Override
+            public void run() {
+                Scaler.scale(sCamera, dst);
+            }
+        });
+        assertWithin("scale bytes", bytes, 2L * WIDTH * 4 + ALLOCATION_SLACK);
+    }
+
+    private static long blurNanos(final int radius) {
+        final PixelBuffer dst = new PixelBuffer(WIDTH, HEIGHT);
+        final int[] scratch = new int[WIDTH * HEIGHT];
+        return fastest(new BenchmarkRunner.Task() {
+            @Override
+            public void run() {
+                BoxBlur.blur(sScreen, dst, radius, scratch);
+            }
+        }, BenchmarkRunner.NO_ALLOCATION_METER).nsMin;
+    }
+
+    // One read and a channel sum per pixel, the unit the time ceilings are given in
+    private static long calibrationNanos(final PixelBuffer image) {
+        final int[] sink = new int[1];
+        return fastest(new BenchmarkRunner.Task() {
+            @Override
+            public void run() {
+                int a = 0, r = 0, g = 0, b = 0;
+                for (int c : image.pixels) {
+                    a += c >>> 24;
+                    r += (c >> 16) & 0xff;
+                    g += (c >> 8) & 0xff;
+                    b += c & 0xff;
+                }
+                sink[0] += a ^ r ^ g ^ b;
+            }
+        }, BenchmarkRunner.NO_ALLOCATION_METER).nsMin;
+    }
+
+    private static long allocatedBytes(BenchmarkRunner.Task task) {
+        ThreadAllocations meter = ThreadAllocations.create();
+        assumeTrue("The JVM can't count allocations", meter != null);
+        return fastest(task, meter).bytesPerOp;
+    }
+
+    // The fastest run is the least disturbed by the rest of the build
+    private static BenchmarkRunner.Result fastest(BenchmarkRunner.Task task,
+            BenchmarkRunner.AllocationMeter meter) {
+        return BenchmarkRunner.measure("", "", 0, task, WARMUP, ITERATIONS, meter);
+    }
+
+    private static void assertWithin(String what, long measured, long ceiling) {
+        assertTrue(what + ": " + measured + " > " + ceiling, measured <= ceiling);
+    }
+
+    // Bytes the calling thread allocated, from the HotSpot extension of ThreadMXBean.
+    // The extension isn't part of Java 7's API, so it's called reflectively.
+    private static class ThreadAllocations implements BenchmarkRunner.AllocationMeter {
+        private final ThreadMXBean mThreads = ManagementFactory.getThreadMXBean();
+        private final Method mAllocatedBytes;
+        private long mStart;
+
+        private ThreadAllocations(Method allocatedBytes) {
+            mAllocatedBytes = allocatedBytes;
+        }
+
+        // Null where the JVM doesn't have the extension
+        static ThreadAllocations create() {
+            try {
+                Class<?> extension = Class.forName("com.sun.management.ThreadMXBean");
+                if (!extension.isInstance(ManagementFactory.getThreadMXBean())) return null;
+                return new ThreadAllocations(extension.getMethod("getThreadAllocatedBytes", long.class));
+            } catch (ReflectiveOperationException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void reset() {
+            mStart = current();
+        }
+
+        @Override
+        public long bytes() {
+            return current() - mStart;
+        }
+
+        @Override
+        public long count() {
+            return -1;
+        }
+
+        private long current() {
+            try {
+                return (Long) mAllocatedBytes.invoke(mThreads, Thread.currentThread().getId());
+            } catch (ReflectiveOperationException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class RotationTest {
+
+    // 0 1 2
+    // 3 4 5
+    private static PixelBuffer source() {
+        return new PixelBuffer(3, 2, new int[] { 0, 1, 2, 3, 4, 5 });
+    }
+
+    @Test
+    public void quarterTurnClockwise() {
+        PixelBuffer dst = Rotation.rotate(source(), 90);
+        assertEquals(2, dst.width);
+        assertEquals(3, dst.height);
+        assertArrayEquals(new int[] { 3, 0, 4, 1, 5, 2 }, dst.pixels);
+    }
+
+    @Test
+    public void quarterTurnCounterClockwise() {
+        PixelBuffer dst = Rotation.rotate(source(), -90);
+        assertEquals(2, dst.width);
+        assertEquals(3, dst.height);
+        assertArrayEquals(new int[] { 2, 5, 1, 4, 0, 3 }, dst.pixels);
+        assertArrayEquals(dst.pixels, Rotation.rotate(source(), 270).pixels);
+    }
+
+    @Test
+    public void halfTurn() {
+        PixelBuffer dst = Rotation.rotate(source(), 180);
+        assertEquals(3, dst.width);
+        assertEquals(2, dst.height);
+        assertArrayEquals(new int[] { 5, 4, 3, 2, 1, 0 }, dst.pixels);
+        assertArrayEquals(dst.pixels, Rotation.rotate(source(), -180).pixels);
+    }
+
+    @Test
+    public void fullTurnReturnsSource() {
+        PixelBuffer src = source();
+        assertSame(src, Rotation.rotate(src, 0));
+        assertSame(src, Rotation.rotate(src, 360));
+        assertSame(src, Rotation.rotate(src, -720));
+    }
+
+    @Test
+    public void quarterTurnsAddUp() {
+        PixelBuffer src = SyntheticImage.create(5, 3, 2);
+        PixelBuffer turned = Rotation.rotate(Rotation.rotate(src, 90), 90);
+        assertArrayEquals(Rotation.rotate(src, 180).pixels, turned.pixels);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherAngles() {
+        Rotation.rotate(source(), 45);
+    }
+}
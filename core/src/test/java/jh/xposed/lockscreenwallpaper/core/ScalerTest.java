@@ -0,0 +1,65 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ScalerTest {
+
+    @Test
+    public void keepsNarrowImages() {
+        PixelBuffer src = new PixelBuffer(900, 1600);
+        assertSame(src, Scaler.scaleToWidth(src, 900));
+        assertSame(src, Scaler.scaleToWidth(src, 1080));
+    }
+
+    @Test
+    public void roundsHeightToNearest() {
+        assertHeight(1080, 1920, 900, 1600);
+        // 333.3 and 666.6
+        assertHeight(1000, 3333, 100, 333);
+        assertHeight(1000, 6666, 100, 667);
+        // 1.33
+        assertHeight(3, 2, 2, 1);
+    }
+
+    @Test
+    public void keepsAtLeastOneRow() {
+        assertHeight(1000, 1, 10, 1);
+    }
+
+    @Test
+    public void averagesBoxes() {
+        PixelBuffer src = new PixelBuffer(4, 2, new int[] {
+                0xff000000, 0xff020202, 0xff646464, 0xff646464,
+                0xff020202, 0xff000000, 0xff646464, 0xff646464
+        });
+        PixelBuffer dst = Scaler.scaleToWidth(src, 2);
+        assertEquals(1, dst.height);
+        assertEquals(0xff010101, dst.pixels[0]);
+        assertEquals(0xff646464, dst.pixels[1]);
+    }
+
+    private static void assertHeight(int width, int height, int maxWidth, int expected) {
+        PixelBuffer dst = Scaler.scaleToWidth(new PixelBuffer(width, height), maxWidth);
+        assertEquals(maxWidth, dst.width);
+        assertEquals(width + "x" + height, expected, dst.height);
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class StageKeysTest {
+
+    private static final String SOURCE = "image:/data/lock_wallpaper@1";
+    private static final int DARK = 0x7f000000;
+    private static final int LIGHT = 0x7fffffff;
+
+    @Test
+    public void chainsProcessorKeys() {
+        assertArrayEquals(new String[] {"src", "src|scale:900", "src|scale:900|blur:25@box"},
+                StageKeys.chain("src", new String[] {StageKeys.scale(900), StageKeys.blur(25, "box")}));
+        assertArrayEquals(new String[] {"src"}, StageKeys.chain("src", new String[0]));
+    }
+
+    // The retint budget: changing only the tint runs nothing before the tint
+    @Test
+    public void retintReusesEveryStageBeforeTint() {
+        String[] dark = seeThrough(SOURCE, 25, DARK, 0);
+        String[] light = seeThrough(SOURCE, 25, LIGHT, 0);
+        // Source, scale and blur
+        assertEquals(3, StageKeys.sharedStages(dark, light));
+    }
+
+    @Test
+    public void rotationReusesEveryStageBeforeRotation() {
+        assertEquals(4, StageKeys.sharedStages(seeThrough(SOURCE, 25, DARK, 0),
+                seeThrough(SOURCE, 25, DARK, 90)));
+    }
+
+    @Test
+    public void blurChangeInvalidatesBlurAndAfter() {
+        assertEquals(2, StageKeys.sharedStages(seeThrough(SOURCE, 25, DARK, 0),
+                seeThrough(SOURCE, 12, DARK, 0)));
+    }
+
+    @Test
+    public void sourceChangeInvalidatesEverything() {
+        assertEquals(0, StageKeys.sharedStages(seeThrough(SOURCE, 25, DARK, 0),
+                seeThrough("image:/data/lock_wallpaper@2", 25, DARK, 0)));
+    }
+
+    @Test
+    public void equalChainsShareEveryStage() {
+        String[] keys = seeThrough(SOURCE, 25, DARK, 0);
+        assertEquals(keys.length, StageKeys.sharedStages(keys, seeThrough(SOURCE, 25, DARK, 0)));
+    }
+
+    // The stages BackgroundPipeline.forImage() sets up, followed by the rotation
+    private static String[] seeThrough(String source, int radius, int tint, int degrees) {
+        return StageKeys.chain(source, new String[] {
+                StageKeys.scale(900),
+                StageKeys.blur(radius, "renderscript"),
+                StageKeys.tint(tint),
+                StageKeys.rotate(degrees)
+        });
+    }
+}
@@ -0,0 +1,244 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs {@link BackgroundPipeline}s against a shared {@link BackgroundCache}, at most one
+ * build per background key at a time.
+ *
+ * A request for a key that is already being built waits for that build and shares its
+ * result instead of starting its own, so a burst of keyguard creations decodes and
+ * blurs once. Builds of different keys run one after the other, since a pipeline run
+ * reads and replaces cache entries the other one may be using. For the same reason a
+ * memory trim that comes in during a build waits for the build to end.
+ *
+ * A caller with a deadline runs the build on a worker thread and stops waiting when the
+ * deadline passes. The build still finishes into the cache, so the next lock finds it.
+ */
+public class BackgroundBuilder {
+
+    private static final String TAG = "BackgroundBuilder";
+
+    // Told about a build that finished after its caller stopped waiting, with a null
+    // background if the build failed or had nothing to build
+    public interface Callback {
+        void onBuilt(Bitmap background);
+    }
+
+    private static class Build {
+        private boolean mDone;
+        private Bitmap mResult;
+        private Throwable mError;
+        private Callback mLateCallback;
+        private boolean mClaimed;
+
+        // True for the one caller that has to run the build
+        synchronized boolean claim() {
+            if (mClaimed) return false;
+            mClaimed = true;
+            return true;
+        }
+
+        void finish(Bitmap result, Throwable error) {
+            Callback callback;
+            synchronized (this) {
+                mResult = result;
+                mError = error;
+                mDone = true;
+                callback = mLateCallback;
+                notifyAll();
+            }
+            if (callback != null) callback.onBuilt(error == null ? result : null);
+        }
+
+        // Waits at most timeoutMs, or for as long as it takes if timeoutMs is 0.
+        // Returns whether the build is done. Measured on the uptime clock, which
+        // wall clock changes don't move.
+        synchronized boolean await(long timeoutMs) {
+            final long deadline = SystemClock.uptimeMillis() + timeoutMs;
+            boolean interrupted = false;
+            while (!mDone) {
+                long remaining = deadline - SystemClock.uptimeMillis();
+                if (timeoutMs > 0 && remaining <= 0) break;
+                try {
+                    wait(timeoutMs > 0 ? remaining : 0);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            return mDone;
+        }
+
+        // Replaces the callback of an earlier caller, false if the build is already done
+        synchronized boolean setLateCallback(Callback callback) {
+            if (mDone) return false;
+            mLateCallback = callback;
+            return true;
+        }
+
+        synchronized Bitmap getResult() {
+            if (mError instanceof RuntimeException) throw (RuntimeException) mError;
+            if (mError instanceof Error) throw (Error) mError;
+            return mResult;
+        }
+    }
+
+    private final BackgroundCache mCache;
+    private final ReentrantLock mRunLock = new ReentrantLock();
+    private final Map<String, Build> mBuilds = new HashMap<String, Build>();
+    // Highest trim level that came in during a build, -1 for none
+    private int mPendingTrimLevel = -1;
+
+    public BackgroundBuilder(BackgroundCache cache) {
+        mCache = cache;
+    }
+
+    // Trims the cache now, or after the build in progress without blocking the caller
+    public void trimMemory(int level) {
+        if (mRunLock.tryLock()) {
+            try {
+                trim(level);
+            } finally {
+                mRunLock.unlock();
+            }
+        } else {
+            synchronized (this) {
+                mPendingTrimLevel = Math.max(mPendingTrimLevel, level);
+            }
+            // The build may have ended in between
+            if (mRunLock.tryLock()) {
+                try {
+                    applyPendingTrim();
+                } finally {
+                    mRunLock.unlock();
+                }
+            }
+        }
+    }
+
+    // Returns the background owned by the cache, or null if the source had nothing
+    public Bitmap build(BackgroundPipeline pipeline, Context context) {
+        final String key = pipeline.getKey();
+        if (key == null) return null;
+
+        Build build = find(key);
+        if (build.claim()) {
+            return run(key, build, pipeline, context);
+        }
+        joined();
+        build.await(0);
+        return build.getResult();
+    }
+
+    // Builds on worker and waits for it at most timeoutMs. If the build takes longer it
+    // carries on, its result lands in the cache and goes to lateCallback on the worker.
+    public Bitmap build(final BackgroundPipeline pipeline, final Context context, Handler worker,
+            long timeoutMs, Callback lateCallback) throws TimeoutException {
+        final String key = pipeline.getKey();
+        if (key == null) return null;
+
+        final Build build = find(key);
+        if (build.claim()) {
+            worker.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        BackgroundBuilder.this.run(key, build, pipeline, context);
+                    } catch (Throwable t) {
+                        ModLog.e(TAG, "Background build failed", t);
+                    }
+                }
+            });
+        } else {
+            joined();
+        }
+        if (!build.await(timeoutMs) && build.setLateCallback(lateCallback)) {
+            throw new TimeoutException("Background not built within " + timeoutMs + " ms");
+        }
+        return build.getResult();
+    }
+
+    // The build in progress for key, a new one if there is none
+    private Build find(String key) {
+        synchronized (mBuilds) {
+            Build build = mBuilds.get(key);
+            if (build == null) {
+                build = new Build();
+                mBuilds.put(key, build);
+            }
+            return build;
+        }
+    }
+
+    private void joined() {
+        PerfMetrics.count(PerfMetrics.COUNTER_BUILDS_JOINED);
+        ModLog.d(TAG, "Joining the build in progress");
+    }
+
+    private Bitmap run(String key, Build build, BackgroundPipeline pipeline, Context context) {
+        Bitmap result = null;
+        Throwable error = null;
+        try {
+            mRunLock.lock();
+            try {
+                result = pipeline.run(context, mCache);
+            } finally {
+                applyPendingTrim();
+                mRunLock.unlock();
+            }
+            return result;
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } catch (Error e) {
+            error = e;
+            throw e;
+        } finally {
+            synchronized (mBuilds) {
+                mBuilds.remove(key);
+            }
+            build.finish(result, error);
+        }
+    }
+
+    private void applyPendingTrim() {
+        int level;
+        synchronized (this) {
+            level = mPendingTrimLevel;
+            mPendingTrimLevel = -1;
+        }
+        if (level >= 0) trim(level);
+    }
+
+    private void trim(int level) {
+        if (mCache.trimMemory(level)) {
+            PerfMetrics.count(PerfMetrics.COUNTER_CACHE_TRIMS);
+            ModLog.d(TAG, "Cache trimmed, level", level);
+        }
+    }
+}
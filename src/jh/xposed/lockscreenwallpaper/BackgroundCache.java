@@ -0,0 +1,128 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+
+/**
+ * Outputs of the processing stages of a {@link BackgroundPipeline}, one per depth.
+ *
+ * An entry is keyed by the keys of the source and every stage up to and including its
+ * own, so it is valid exactly as long as nothing upstream changed. Replaced bitmaps are
+ * not recycled, the keyguard may still be showing them.
+ *
+ * Under memory pressure, or above the byte budget, the intermediate stages are dropped
+ * first, shallowest and so largest first, and the final background of the last run
+ * only when memory runs out. Dropped bitmaps are left to the garbage collector.
+ */
+public class BackgroundCache {
+
+    private String[] mKeys = new String[0];
+    private Bitmap[] mBitmaps = new Bitmap[0];
+    // Depth of the last put, the background the keyguard shows
+    private int mFinalDepth = -1;
+    private long mByteBudget;
+
+    public synchronized Bitmap get(int depth, String key) {
+        if (key == null || depth >= mKeys.length || !key.equals(mKeys[depth])) return null;
+
+        Bitmap bmp = mBitmaps[depth];
+        return bmp == null || bmp.isRecycled() ? null : bmp;
+    }
+
+    public synchronized void put(int depth, String key, Bitmap bmp) {
+        if (depth >= mKeys.length) {
+            String[] keys = new String[depth + 1];
+            Bitmap[] bitmaps = new Bitmap[depth + 1];
+            System.arraycopy(mKeys, 0, keys, 0, mKeys.length);
+            System.arraycopy(mBitmaps, 0, bitmaps, 0, mBitmaps.length);
+            mKeys = keys;
+            mBitmaps = bitmaps;
+        }
+        mKeys[depth] = key;
+        mBitmaps[depth] = bmp;
+        mFinalDepth = depth;
+        trimToBudget();
+    }
+
+    // 0 for no budget
+    public synchronized void setByteBudget(long bytes) {
+        mByteBudget = bytes;
+        trimToBudget();
+    }
+
+    // Bytes of the distinct bitmaps held, a stage that changed nothing shares its input
+    public synchronized long getByteCount() {
+        long bytes = 0;
+        for (int depth = 0; depth < mBitmaps.length; depth++) {
+            Bitmap bmp = mBitmaps[depth];
+            if (bmp == null || bmp.isRecycled() || indexOf(bmp) < depth) continue;
+            bytes += bmp.getByteCount();
+        }
+        return bytes;
+    }
+
+    // Sheds what a ComponentCallbacks2 trim level asks for, returns whether anything was dropped
+    public synchronized boolean trimMemory(int level) {
+        long before = getByteCount();
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            for (int depth = 0; depth < mKeys.length; depth++) {
+                dropIntermediate(depth);
+            }
+        }
+        return getByteCount() < before;
+    }
+
+    // Whether bmp is held by any entry, so the pipeline doesn't recycle it
+    public synchronized boolean contains(Bitmap bmp) {
+        for (Bitmap cached : mBitmaps) {
+            if (cached == bmp) return true;
+        }
+        return false;
+    }
+
+    public synchronized void clear() {
+        mKeys = new String[0];
+        mBitmaps = new Bitmap[0];
+        mFinalDepth = -1;
+    }
+
+    private void trimToBudget() {
+        for (int depth = 0; depth < mKeys.length && mByteBudget > 0 && getByteCount() > mByteBudget; depth++) {
+            dropIntermediate(depth);
+        }
+    }
+
+    // Keeps the final background, and any stage that is the final background
+    private void dropIntermediate(int depth) {
+        if (depth == mFinalDepth || mBitmaps[depth] == null) return;
+        if (mFinalDepth >= 0 && mBitmaps[depth] == mBitmaps[mFinalDepth]) return;
+        mKeys[depth] = null;
+        mBitmaps[depth] = null;
+    }
+
+    private int indexOf(Bitmap bmp) {
+        for (int depth = 0; depth < mBitmaps.length; depth++) {
+            if (mBitmaps[depth] == bmp) return depth;
+        }
+        return -1;
+    }
+}
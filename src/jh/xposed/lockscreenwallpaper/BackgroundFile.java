@@ -0,0 +1,258 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Environment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Background image file shared between the settings app, system_server and the keyguard.
+ *
+ * Every file starts with a fixed size header (magic, version, dimensions, generation,
+ * a content fingerprint and a CRC32 of the encoded payload) followed by the encoded
+ * image. Writers go through a temporary file that is published with an atomic rename,
+ * so readers either see the previous complete file or the new complete file, never a
+ * truncated one.
+ */
+public class BackgroundFile {
+
+    public static final String LOCK_WALLPAPER = "lockwallpaper";
+    public static final String SEE_THROUGH_IMAGE = "seethroughimage";
+    // Earlier versions had system_server write the see-through image into a
+    // world-writable subdirectory of the app's files dir
+    public static final String LEGACY_SEE_THROUGH_DIR = "seethrough";
+
+    public static final int VERSION = 2;
+    static final int MAGIC = 0x4c535742; // "LSWB"
+    static final int HEADER_SIZE = 40;
+
+    public static class Header {
+        public final int width;
+        public final int height;
+        public final long generation;
+        public final long fingerprint;
+        public final int length;
+        public final int checksum;
+
+        Header(int width, int height, long generation, long fingerprint, int length, int checksum) {
+            this.width = width;
+            this.height = height;
+            this.generation = generation;
+            this.fingerprint = fingerprint;
+            this.length = length;
+            this.checksum = checksum;
+        }
+    }
+
+    // system_server keeps the see-through image next to its own data. It creates the
+    // directory on the first capture and is the only one that can write to it, the
+    // keyguard only reads from it.
+    public static File seeThroughDir() {
+        return new File(Environment.getDataDirectory(), "system/" + XposedLockscreenWallpaper.PACKAGE_NAME);
+    }
+
+    // Creates a directory others can read published files from but not write to
+    public static void ensureDir(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        dir.setReadable(true, false);
+        dir.setWritable(false, false);
+        dir.setWritable(true, true);
+        dir.setExecutable(true, false);
+    }
+
+    public final Header header;
+    public final byte[] payload;
+
+    private BackgroundFile(Header header, byte[] payload) {
+        this.header = header;
+        this.payload = payload;
+    }
+
+    public Bitmap decode(BitmapFactory.Options opts) {
+        return BitmapFactory.decodeByteArray(payload, 0, header.length, opts);
+    }
+
+    // Only looks at the header and the file length, so stale, empty or
+    // half-written files are rejected without touching the payload
+    public static Header readHeader(File file) {
+        final long fileLength = file.length();
+        if (fileLength < HEADER_SIZE) return null;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            return readHeader(in, fileLength);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    // Images picked before the header was introduced are plain encoded files. They are
+    // told apart by the magic, a file with the magic is never treated as legacy.
+    public static boolean isLegacy(File file) {
+        if (file.length() < 4) return false;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            return in.readInt() != MAGIC;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    public static BackgroundFile read(File file) {
+        final long fileLength = file.length();
+        if (fileLength < HEADER_SIZE) return null;
+
+        DataInputStream in = null;
+        try {
+            // Header and payload come from the same open stream, so a concurrent
+            // rename can't pair the header of one file with the payload of another
+            in = new DataInputStream(new FileInputStream(file));
+            Header header = readHeader(in, fileLength);
+            if (header == null) return null;
+
+            byte[] payload = new byte[header.length];
+            in.readFully(payload);
+            if (checksum(payload, header.length) != header.checksum) return null;
+            return new BackgroundFile(header, payload);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    public static Header write(File file, int width, int height, long fingerprint,
+            byte[] payload, int length) throws IOException {
+        final Header header = new Header(width, height, nextGeneration(file), fingerprint, length,
+                checksum(payload, length));
+
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(header.width);
+            out.writeInt(header.height);
+            out.writeLong(header.generation);
+            out.writeLong(header.fingerprint);
+            out.writeInt(header.length);
+            out.writeInt(header.checksum);
+            out.write(payload, 0, length);
+            out.flush();
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+
+            tmp.setReadable(true, false);
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmp + " to " + file);
+            }
+            return header;
+        } finally {
+            closeQuietly(fos);
+            tmp.delete();
+        }
+    }
+
+    // Wraps an already encoded image (e.g. the output of the crop activity)
+    public static Header publish(File source, File target) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) source.length());
+        InputStream in = null;
+        try {
+            in = new FileInputStream(source);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        } finally {
+            closeQuietly(in);
+        }
+
+        byte[] payload = bytes.toByteArray();
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(payload, 0, payload.length, opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+            throw new IOException("Not a decodable image: " + source);
+        }
+        return write(target, opts.outWidth, opts.outHeight, 0, payload, payload.length);
+    }
+
+    public static boolean clear(File file) {
+        return !file.exists() || file.delete();
+    }
+
+    // Generations only ever move forward, even across clear(), so a reader
+    // caching by generation never mistakes a new file for one it has seen
+    private static long nextGeneration(File file) {
+        Header previous = readHeader(file);
+        long now = System.currentTimeMillis();
+        return previous != null && previous.generation >= now ? previous.generation + 1 : now;
+    }
+
+    private static Header readHeader(DataInputStream in, long fileLength) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+        int width = in.readInt();
+        int height = in.readInt();
+        long generation = in.readLong();
+        long fingerprint = in.readLong();
+        int length = in.readInt();
+        int checksum = in.readInt();
+        if (width <= 0 || height <= 0 || length <= 0 || length != fileLength - HEADER_SIZE) {
+            return null;
+        }
+        return new Header(width, height, generation, fingerprint, length, checksum);
+    }
+
+    private static int checksum(byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return (int) crc.getValue();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
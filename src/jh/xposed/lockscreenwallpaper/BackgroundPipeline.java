@@ -0,0 +1,261 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.view.Surface;
+import jh.xposed.lockscreenwallpaper.core.StageKeys;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link BackgroundSource} followed by {@link BackgroundProcessor}s.
+ *
+ * The pipeline owns the bitmaps it creates: every intermediate is recycled once the
+ * next stage has replaced it, and each stage is timed, traced and accounted for under
+ * its own {@link PerfMetrics} stage. The key of a pipeline is made of the keys of its
+ * stages, so equal keys mean equal results. Given a {@link BackgroundCache}, the output
+ * of every processing stage is kept under the key of the stages up to it.
+ */
+public class BackgroundPipeline {
+
+    public static final int COST_CHEAP = 0;
+    public static final int COST_MODERATE = 1;
+    public static final int COST_EXPENSIVE = 2;
+
+    public static final int MAX_BLUR_WIDTH = 900;
+    // How much smaller the preview of an image background is decoded
+    public static final int PREVIEW_SAMPLE_SIZE = 8;
+
+    private static final String TAG = "BackgroundPipeline";
+
+    // Told about every stage as it finishes, for profiling tools
+    public interface StageListener {
+        void onStage(int stage, long nanos, Bitmap output);
+    }
+
+    private final BackgroundSource mSource;
+    private final List<BackgroundProcessor> mProcessors = new ArrayList<BackgroundProcessor>();
+    private StageListener mListener;
+    private BackgroundPipeline mPreview;
+
+    public BackgroundPipeline(BackgroundSource source) {
+        mSource = source;
+    }
+
+    // Processors added once there is a preview are added to the preview as well
+    public BackgroundPipeline add(BackgroundProcessor processor) {
+        mProcessors.add(processor);
+        if (mPreview != null) mPreview.add(processor);
+        return this;
+    }
+
+    // Builds the pipeline for the current settings, null for the stock background.
+    // rotation is one of the Surface.ROTATION_ values of the keyguard's display.
+    public static BackgroundPipeline create(SharedPreferences prefs, File filesDir, File seeThroughDir,
+            int rotation) {
+        final String bgType = prefs.getString(
+                SettingsActivity.PREF_KEY_LOCKSCREEN_BACKGROUND,
+                SettingsActivity.LOCKSCREEN_BG_DEFAULT);
+
+        BackgroundPipeline pipeline;
+        if (bgType.equals(SettingsActivity.LOCKSCREEN_BG_COLOR)) {
+            pipeline = new BackgroundPipeline(new BackgroundSources.SolidColor(prefs.getInt(
+                    SettingsActivity.PREF_KEY_LOCKSCREEN_BACKGROUND_COLOR, Color.BLACK)));
+        } else if (bgType.equals(SettingsActivity.LOCKSCREEN_BG_IMAGE)
+                || bgType.equals(SettingsActivity.LOCKSCREEN_BG_SEE_THROUGH)) {
+            boolean seeThrough = bgType.equals(SettingsActivity.LOCKSCREEN_BG_SEE_THROUGH);
+            File file = seeThrough
+                    ? new File(seeThroughDir, BackgroundFile.SEE_THROUGH_IMAGE)
+                    : new File(filesDir, BackgroundFile.LOCK_WALLPAPER);
+            String tint = seeThrough ? prefs.getString(
+                    SettingsActivity.PREF_KEY_LOCKSCREEN_BACKGROUND_SEE_THROUGH_TINT,
+                    SettingsActivity.LOCKSCREEN_BG_SEE_THROUGH_TINT_DARK) : null;
+            pipeline = forImage(file,
+                    prefs.getInt(SettingsActivity.PREF_KEY_LOCKSCREEN_BLUR_AMOUNT, 100), tint,
+                    prefs.getString(SettingsActivity.PREF_KEY_BLUR_ENGINE, Utils.BLUR_ENGINE_RENDERSCRIPT));
+        } else {
+            return null;
+        }
+        return pipeline.add(new BackgroundProcessors.Rotate(rotationDegrees(rotation)));
+    }
+
+    // An image background before rotation. blurAmount is the value of the blur amount
+    // preference, tint one of the see-through tint values or null for none.
+    public static BackgroundPipeline forImage(File file, int blurAmount, String tint) {
+        return forImage(file, blurAmount, tint, Utils.BLUR_ENGINE_RENDERSCRIPT);
+    }
+
+    // blurEngine is one of Utils.BLUR_ENGINES
+    public static BackgroundPipeline forImage(File file, int blurAmount, String tint, String blurEngine) {
+        int radius = blurAmount / 4;
+        BackgroundPipeline pipeline = new BackgroundPipeline(new BackgroundSources.ImageFile(file))
+                .add(new BackgroundProcessors.Downscale(MAX_BLUR_WIDTH))
+                .add(new BackgroundProcessors.Blur(radius == 0 ? 1 : radius, blurEngine));
+        // The preview blurs in plain Java, the RenderScript blur may be busy with the full image
+        pipeline.mPreview = new BackgroundPipeline(new BackgroundSources.ImageFile(file, PREVIEW_SAMPLE_SIZE))
+                .add(new BackgroundProcessors.Blur(Math.max(1, radius / PREVIEW_SAMPLE_SIZE),
+                        Utils.BLUR_ENGINE_BOX));
+        if (SettingsActivity.LOCKSCREEN_BG_SEE_THROUGH_TINT_DARK.equals(tint)) {
+            pipeline.add(new BackgroundProcessors.Tint(Color.argb(127, 0, 0, 0)));
+        } else if (SettingsActivity.LOCKSCREEN_BG_SEE_THROUGH_TINT_LIGHT.equals(tint)) {
+            pipeline.add(new BackgroundProcessors.Tint(Color.argb(127, 255, 255, 255)));
+        }
+        return pipeline;
+    }
+
+    // The background is drawn unrotated, so it is turned against the display
+    private static int rotationDegrees(int rotation) {
+        switch (rotation) {
+            case Surface.ROTATION_90:
+                return -90;
+            case Surface.ROTATION_180:
+                return -180;
+            case Surface.ROTATION_270:
+                return 90;
+            default:
+                return 0;
+        }
+    }
+
+    public BackgroundPipeline setStageListener(StageListener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    // A cheap, lower resolution version of the background, null if there is none
+    public BackgroundPipeline getPreview() {
+        return mPreview;
+    }
+
+    public BackgroundSource getSource() {
+        return mSource;
+    }
+
+    public List<BackgroundProcessor> getProcessors() {
+        return mProcessors;
+    }
+
+    // Null if the source has nothing to load
+    public String getKey() {
+        String[] keys = stageKeys();
+        return keys != null ? keys[keys.length - 1] : null;
+    }
+
+    // The most expensive stage
+    public int getCostHint() {
+        int cost = mSource.getCostHint();
+        for (BackgroundProcessor processor : mProcessors) {
+            cost = Math.max(cost, processor.getCostHint());
+        }
+        return cost;
+    }
+
+    // Returns the processed background owned by the caller, or null if the source had nothing
+    public Bitmap run(Context context) {
+        return run(context, null);
+    }
+
+    // Starts from the deepest stage output in the cache that is still valid, so a
+    // change at one stage only reruns that stage and the ones after it. The result is
+    // owned by the cache.
+    public Bitmap run(Context context, BackgroundCache cache) {
+        final int depth = mProcessors.size();
+        String[] keys = cache != null ? stageKeys() : null;
+        Bitmap bmp = null;
+        int next = depth;
+        if (keys != null) {
+            for (; next > 0; next--) {
+                bmp = cache.get(next, keys[next]);
+                if (bmp != null) break;
+            }
+        }
+
+        if (bmp == null) {
+            bmp = load(mSource, context);
+            if (bmp == null) return null;
+            // The source may have changed since its key was taken
+            if (cache != null) keys = stageKeys();
+        }
+        if (cache != null) {
+            PerfMetrics.count(next == depth ? PerfMetrics.COUNTER_CACHE_HITS
+                    : next > 0 ? PerfMetrics.COUNTER_CACHE_PARTIAL_HITS : PerfMetrics.COUNTER_CACHE_MISSES);
+            ModLog.d(TAG, "Reusing stages", next, depth);
+        }
+
+        for (int i = next; i < depth; i++) {
+            bmp = process(mProcessors.get(i), bmp, context, cache);
+            if (keys != null) cache.put(i + 1, keys[i + 1], bmp);
+        }
+        return bmp;
+    }
+
+    // See StageKeys.chain(), null if the source has nothing to load
+    private String[] stageKeys() {
+        String key = mSource.getKey();
+        if (key == null) return null;
+
+        String[] processorKeys = new String[mProcessors.size()];
+        for (int i = 0; i < processorKeys.length; i++) {
+            processorKeys[i] = mProcessors.get(i).getKey();
+        }
+        return StageKeys.chain(key, processorKeys);
+    }
+
+    private Bitmap load(BackgroundSource source, Context context) {
+        final int stage = source.getStage();
+        boolean traced = Tracing.begin(Tracing.stageSection(stage));
+        long start = PerfMetrics.start();
+        Bitmap output = null;
+        try {
+            output = BitmapAccounting.track(stage, source.load(context));
+            return output;
+        } finally {
+            long elapsed = PerfMetrics.record(stage, start);
+            Tracing.end(traced);
+            if (mListener != null) mListener.onStage(stage, elapsed, output);
+        }
+    }
+
+    // Recycles the input once it has been replaced, unless the cache holds it. An input
+    // the cache doesn't hold may be reused for the output.
+    private Bitmap process(BackgroundProcessor processor, Bitmap input, Context context,
+            BackgroundCache cache) {
+        final int stage = processor.getStage();
+        final boolean owned = cache == null || !cache.contains(input);
+        boolean traced = Tracing.begin(Tracing.stageSection(stage));
+        long start = PerfMetrics.start();
+        Bitmap output = null;
+        try {
+            output = processor.process(input, owned, context);
+            if (output != input) {
+                BitmapAccounting.track(stage, output);
+                if (owned) input.recycle();
+            }
+            return output;
+        } finally {
+            long elapsed = PerfMetrics.record(stage, start);
+            Tracing.end(traced);
+            if (mListener != null) mListener.onStage(stage, elapsed, output);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+/**
+ * Processing stage of a {@link BackgroundPipeline}.
+ */
+public interface BackgroundProcessor {
+
+    // Identifies the processing and all of its parameters
+    String getKey();
+
+    // One of the BackgroundPipeline.COST_ values
+    int getCostHint();
+
+    // PerfMetrics stage the work is recorded under
+    int getStage();
+
+    // Returns the input itself if there is nothing to do, otherwise the output. Unless
+    // reuseInput is set the input must not be modified, it may still be in use by the
+    // caller. With reuseInput the input is left to the processor, which may write the
+    // output over it and return it.
+    Bitmap process(Bitmap input, boolean reuseInput, Context context);
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import jh.xposed.lockscreenwallpaper.core.StageKeys;
+
+/**
+ * The {@link BackgroundProcessor}s applied to the lockscreen background.
+ *
+ * The pixel work stays on the framework's native paths: Bitmap.createScaledBitmap(),
+ * RenderScript, Canvas and Matrix. The Android-free kernels in the core package do the
+ * same work on buffers for the box blur engines, tests and benchmarks. Only Tint draws
+ * over its input, when the pipeline hands over one the cache doesn't hold.
+ */
+public class BackgroundProcessors {
+
+    // Blurring is the expensive part and the result is blurry anyway,
+    // so large images are scaled down first
+    public static class Downscale implements BackgroundProcessor {
+        private final int mMaxWidth;
+
+        public Downscale(int maxWidth) {
+            mMaxWidth = maxWidth;
+        }
+
+        @Override
+        public String getKey() {
+            return StageKeys.scale(mMaxWidth);
+        }
+
+        @Override
+        public int getCostHint() {
+            return BackgroundPipeline.COST_MODERATE;
+        }
+
+        @Override
+        public int getStage() {
+            return PerfMetrics.STAGE_SCALE;
+        }
+
+        @Override
+        public Bitmap process(Bitmap input, boolean reuseInput, Context context) {
+            return Utils.scaleToWidth(input, mMaxWidth);
+        }
+    }
+
+    public static class Blur implements BackgroundProcessor {
+        private final int mRadius;
+        private final String mEngine;
+
+        public Blur(int radius) {
+            this(radius, Utils.BLUR_ENGINE_RENDERSCRIPT);
+        }
+
+        // engine is one of Utils.BLUR_ENGINES
+        public Blur(int radius, String engine) {
+            mRadius = radius;
+            mEngine = engine;
+        }
+
+        @Override
+        public String getKey() {
+            return StageKeys.blur(mRadius, mEngine);
+        }
+
+        @Override
+        public int getCostHint() {
+            return BackgroundPipeline.COST_EXPENSIVE;
+        }
+
+        @Override
+        public int getStage() {
+            return PerfMetrics.STAGE_BLUR;
+        }
+
+        @Override
+        public Bitmap process(Bitmap input, boolean reuseInput, Context context) {
+            return Utils.blurBitmap(input, mRadius, mEngine, context);
+        }
+    }
+
+    // Draws a translucent color over the image
+    public static class Tint implements BackgroundProcessor {
+        private final int mColor;
+
+        public Tint(int color) {
+            mColor = color;
+        }
+
+        @Override
+        public String getKey() {
+            return StageKeys.tint(mColor);
+        }
+
+        @Override
+        public int getCostHint() {
+            return BackgroundPipeline.COST_MODERATE;
+        }
+
+        @Override
+        public int getStage() {
+            return PerfMetrics.STAGE_TINT;
+        }
+
+        @Override
+        public Bitmap process(Bitmap input, boolean reuseInput, Context context) {
+            if (reuseInput && input.isMutable()) {
+                new Canvas(input).drawColor(mColor);
+                return input;
+            }
+
+            Bitmap out = Bitmap.createBitmap(input.getWidth(), input.getHeight(), Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(out);
+            canvas.drawBitmap(input, 0, 0, null);
+            canvas.drawColor(mColor);
+            return out;
+        }
+    }
+
+    public static class Rotate implements BackgroundProcessor {
+        private final int mDegrees;
+
+        public Rotate(int degrees) {
+            mDegrees = degrees;
+        }
+
+        @Override
+        public String getKey() {
+            return StageKeys.rotate(mDegrees);
+        }
+
+        @Override
+        public int getCostHint() {
+            return mDegrees == 0 ? BackgroundPipeline.COST_CHEAP : BackgroundPipeline.COST_MODERATE;
+        }
+
+        @Override
+        public int getStage() {
+            return PerfMetrics.STAGE_ROTATE;
+        }
+
+        @Override
+        public Bitmap process(Bitmap input, boolean reuseInput, Context context) {
+            if (mDegrees % 360 == 0) return input;
+
+            Matrix matrix = new Matrix();
+            matrix.postRotate(mDegrees);
+            return Bitmap.createBitmap(input, 0, 0, input.getWidth(), input.getHeight(), matrix, true);
+        }
+    }
+}
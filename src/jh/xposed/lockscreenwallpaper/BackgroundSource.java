@@ -0,0 +1,39 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+/**
+ * First stage of a {@link BackgroundPipeline}, produces the unprocessed background.
+ */
+public interface BackgroundSource {
+
+    // Identifies what load() returns, changes whenever the result would change.
+    // Null if the source has nothing to load.
+    String getKey();
+
+    // One of the BackgroundPipeline.COST_ values
+    int getCostHint();
+
+    // PerfMetrics stage the work is recorded under
+    int getStage();
+
+    // Returns a new bitmap owned by the caller, or null
+    Bitmap load(Context context);
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.File;
+
+/**
+ * The {@link BackgroundSource}s the lockscreen background can come from.
+ */
+public class BackgroundSources {
+
+    public static class SolidColor implements BackgroundSource {
+        private final int mColor;
+
+        public SolidColor(int color) {
+            mColor = color;
+        }
+
+        @Override
+        public String getKey() {
+            return "color:" + Integer.toHexString(mColor);
+        }
+
+        @Override
+        public int getCostHint() {
+            return BackgroundPipeline.COST_CHEAP;
+        }
+
+        @Override
+        public int getStage() {
+            return PerfMetrics.STAGE_DECODE;
+        }
+
+        // The keyguard stretches the background, a single pixel is enough
+        @Override
+        public Bitmap load(Context context) {
+            Bitmap bmp = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+            bmp.eraseColor(mColor);
+            return bmp;
+        }
+    }
+
+    // An image published with BackgroundFile, the picked wallpaper or a see-through capture.
+    // A wallpaper from before BackgroundFile is still decoded, its modification time
+    // stands in for the generation until the settings app migrates it.
+    public static class ImageFile implements BackgroundSource {
+        private final File mFile;
+        private final int mSampleSize;
+        private long mGeneration = -1;
+
+        public ImageFile(File file) {
+            this(file, 1);
+        }
+
+        // Decodes every sampleSize-th pixel in each direction, for a quick smaller image
+        public ImageFile(File file, int sampleSize) {
+            mFile = file;
+            mSampleSize = sampleSize;
+        }
+
+        // The generation only changes when the file is rewritten, and reading it
+        // doesn't touch the payload
+        @Override
+        public String getKey() {
+            if (mGeneration < 0) {
+                BackgroundFile.Header header = BackgroundFile.readHeader(mFile);
+                if (header != null) {
+                    mGeneration = header.generation;
+                } else if (BackgroundFile.isLegacy(mFile)) {
+                    mGeneration = mFile.lastModified();
+                } else {
+                    return null;
+                }
+            }
+            return mFile.getName() + (mSampleSize > 1 ? "/" + mSampleSize : "") + "@" + mGeneration;
+        }
+
+        @Override
+        public int getCostHint() {
+            return BackgroundPipeline.COST_MODERATE;
+        }
+
+        @Override
+        public int getStage() {
+            return PerfMetrics.STAGE_DECODE;
+        }
+
+        // Empty, stale or torn files are rejected before reaching the decoder. The key
+        // follows the loaded file in case it was replaced since getKey() was called.
+        @Override
+        public Bitmap load(Context context) {
+            BitmapFactory.Options opts = null;
+            if (mSampleSize > 1) {
+                opts = new BitmapFactory.Options();
+                opts.inSampleSize = mSampleSize;
+            }
+
+            BackgroundFile file = BackgroundFile.read(mFile);
+            if (file != null) {
+                mGeneration = file.header.generation;
+                return file.decode(opts);
+            }
+            if (!BackgroundFile.isLegacy(mFile)) return null;
+            mGeneration = mFile.lastModified();
+            return BitmapFactory.decodeFile(mFile.getPath(), opts);
+        }
+    }
+}
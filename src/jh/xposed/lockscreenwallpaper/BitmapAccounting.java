@@ -0,0 +1,161 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper;
+
+import android.graphics.Bitmap;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Keeps track of the bitmaps the keyguard pipeline allocates.
+ *
+ * Allocations are attributed to the {@link PerfMetrics} stage that made them. Tracked
+ * bitmaps are only weakly referenced, a bitmap stops counting as live once it has been
+ * recycled or collected, and the live total is sampled after every allocation to find
+ * the peak of each lock.
+ *
+ * A lock lasts from beginLock() to endLock(), which the keyguard hook calls once the
+ * build it started is done, on the worker thread if it missed its deadline. Allocations
+ * outside of a lock, like the prewarm at boot, only count towards the totals.
+ */
+public class BitmapAccounting {
+
+    public static final long DEFAULT_BUDGET = 32 * 1024 * 1024;
+
+    private static final int STAGES = PerfMetrics.STAGE_NAMES.length;
+
+    private static final List<WeakReference<Bitmap>> sTracked = new ArrayList<WeakReference<Bitmap>>();
+    private static final long[] sLockBytes = new long[STAGES];
+    private static final long[] sTotalBytes = new long[STAGES];
+    private static final int[] sTotalCount = new int[STAGES];
+    private static long sBudget = DEFAULT_BUDGET;
+    private static int sLockCount;
+    private static boolean sInLock;
+    private static long sLockPeak;
+    private static long sMaxPeak;
+    private static int sLocks;
+    private static int sOverBudget;
+
+    public static synchronized void setBudget(long bytes) {
+        sBudget = bytes;
+    }
+
+    public static synchronized void beginLock() {
+        Arrays.fill(sLockBytes, 0);
+        sLockCount = 0;
+        sLockPeak = liveBytes();
+        sInLock = true;
+    }
+
+    public static synchronized Bitmap track(int stage, Bitmap bmp) {
+        if (bmp == null) return null;
+
+        int bytes = bmp.getByteCount();
+        sTotalBytes[stage] += bytes;
+        sTotalCount[stage]++;
+        sTracked.add(new WeakReference<Bitmap>(bmp));
+        if (sInLock) {
+            sLockBytes[stage] += bytes;
+            sLockCount++;
+            sLockPeak = Math.max(sLockPeak, liveBytes());
+        }
+        return bmp;
+    }
+
+    // Returns the peak of the lock if it exceeded the budget, 0 otherwise
+    public static synchronized long endLock() {
+        sInLock = false;
+        sLocks++;
+        sMaxPeak = Math.max(sMaxPeak, sLockPeak);
+        if (sBudget > 0 && sLockPeak > sBudget) {
+            sOverBudget++;
+            return sLockPeak;
+        }
+        return 0;
+    }
+
+    // Peak of the current or last lock
+    public static synchronized long lastPeak() {
+        return sLockPeak;
+    }
+
+    // Bitmaps allocated by the current or last lock
+    public static synchronized int lastCount() {
+        return sLockCount;
+    }
+
+    public static synchronized long liveBytes() {
+        long live = 0;
+        Iterator<WeakReference<Bitmap>> it = sTracked.iterator();
+        while (it.hasNext()) {
+            Bitmap bmp = it.next().get();
+            if (bmp == null || bmp.isRecycled()) {
+                it.remove();
+            } else {
+                live += bmp.getByteCount();
+            }
+        }
+        return live;
+    }
+
+    // "stage,last_lock_bytes,total_bytes,count" lines followed by "name,value" totals
+    public static synchronized String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        for (int stage = 0; stage < STAGES; stage++) {
+            if (sTotalCount[stage] == 0) continue;
+            sb.append(PerfMetrics.STAGE_NAMES[stage]).append(',')
+                    .append(sLockBytes[stage]).append(',')
+                    .append(sTotalBytes[stage]).append(',')
+                    .append(sTotalCount[stage]).append('\n');
+        }
+        sb.append("live,").append(liveBytes()).append('\n');
+        sb.append("last_peak,").append(sLockPeak).append('\n');
+        sb.append("max_peak,").append(sMaxPeak).append('\n');
+        sb.append("budget,").append(sBudget).append('\n');
+        sb.append("locks,").append(sLocks).append('\n');
+        sb.append("over_budget,").append(sOverBudget).append('\n');
+        return sb.toString();
+    }
+
+    // Human readable form of a snapshot, for the settings app
+    public static String format(String snapshot) {
+        if (snapshot == null) return null;
+        StringBuilder sb = new StringBuilder();
+        for (String line : snapshot.split("\n")) {
+            String[] fields = line.split(",");
+            if (fields.length == 4) {
+                sb.append(fields[0]).append(": ").append(formatBytes(fields[1]))
+                        .append(" (").append(fields[3]).append(" total, ")
+                        .append(formatBytes(fields[2])).append(")\n");
+            } else if (fields.length == 2) {
+                boolean isBytes = !fields[0].equals("locks") && !fields[0].equals("over_budget");
+                sb.append(fields[0]).append(": ")
+                        .append(isBytes ? formatBytes(fields[1]) : fields[1]).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String formatBytes(String bytes) {
+        return String.format(Locale.US, "%.1f MB", Long.parseLong(bytes) / (1024f * 1024f));
+    }
+}
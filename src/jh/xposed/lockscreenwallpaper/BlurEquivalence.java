@@ -0,0 +1,158 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import jh.xposed.lockscreenwallpaper.core.GaussianBlur;
+import jh.xposed.lockscreenwallpaper.core.ImageQuality;
+import jh.xposed.lockscreenwallpaper.core.PixelBuffer;
+import jh.xposed.lockscreenwallpaper.core.SyntheticImage;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Checks every blur engine in {@link Utils#BLUR_ENGINES}, RenderScript included, against
+ * the reference {@link GaussianBlur}, on a fixed set of synthetic images plus an optional
+ * corpus, for every radius from 1 to 25 the blur amount setting can produce.
+ *
+ * The reference is the exact kernel ScriptIntrinsicBlur approximates, computed on the
+ * CPU and pinned by the core unit tests, so a GPU driver whose RenderScript blur drifts
+ * fails like any other engine. An engine passes if every image and radius stays within
+ * the PSNR and SSIM minimums in res/values/integers.xml, and the fastest engine that
+ * passes is the one to use. Every engine is run once untimed before the measurements,
+ * so RenderScript's setup isn't held against it.
+ */
+public class BlurEquivalence {
+
+    public static final String CSV_HEADER = "image,radius,engine,psnr_db,ssim,time_us,result";
+
+    private static final String TAG = "BlurEquivalence";
+    // What pref_lockscreen_blur_amount gives: 0 to 100 divided by 4, 0 becoming 1
+    private static final int MAX_RADIUS = 25;
+    private static final long[] SYNTHETIC_SEEDS = { 1, 2, 3 };
+    private static final int SYNTHETIC_WIDTH = BackgroundPipeline.MAX_BLUR_WIDTH;
+    private static final int SYNTHETIC_HEIGHT = 1600;
+
+    private final Context mContext;
+    private final double mMinPsnr;
+    private final double mMinSsim;
+    private final boolean[] mFailed = new boolean[Utils.BLUR_ENGINES.length];
+    private final long[] mNanos = new long[Utils.BLUR_ENGINES.length];
+
+    public BlurEquivalence(Context context) {
+        mContext = context;
+        mMinPsnr = context.getResources().getInteger(R.integer.blur_min_psnr);
+        mMinSsim = context.getResources().getInteger(R.integer.blur_min_ssim) / 1000.0;
+    }
+
+    // corpusDir may be null or missing, the synthetic images are always used
+    public String run(File corpusDir) {
+        StringBuilder csv = new StringBuilder(CSV_HEADER).append('\n');
+        warmUp();
+        for (long seed : SYNTHETIC_SEEDS) {
+            Bitmap image = Pixels.toBitmap(SyntheticImage.create(SYNTHETIC_WIDTH, SYNTHETIC_HEIGHT, seed));
+            compare("synthetic" + seed, image, csv);
+            image.recycle();
+        }
+
+        File[] files = corpusDir != null ? corpusDir.listFiles() : null;
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                Bitmap image = decode(file);
+                if (image == null) continue;
+                compare(file.getName().replace(',', '_'), image, csv);
+                image.recycle();
+            }
+        }
+
+        for (int i = 0; i < Utils.BLUR_ENGINES.length; i++) {
+            csv.append("all,,").append(Utils.BLUR_ENGINES[i]).append(",,,").append(mNanos[i] / 1000)
+                    .append(',').append(mFailed[i] ? "fail" : "pass").append('\n');
+        }
+        return csv.toString();
+    }
+
+    // The passing engine with the lowest total time, RenderScript if none passes
+    public String getFastestPassingEngine() {
+        int fastest = -1;
+        for (int i = 0; i < Utils.BLUR_ENGINES.length; i++) {
+            if (!mFailed[i] && (fastest < 0 || mNanos[i] < mNanos[fastest])) fastest = i;
+        }
+        return fastest < 0 ? Utils.BLUR_ENGINE_RENDERSCRIPT : Utils.BLUR_ENGINES[fastest];
+    }
+
+    // Brings up the RenderScript context and runs every engine once, untimed
+    private void warmUp() {
+        Utils.prepareBlur(mContext);
+        Bitmap image = Pixels.toBitmap(SyntheticImage.create(SYNTHETIC_WIDTH, SYNTHETIC_HEIGHT, 0));
+        for (String engine : Utils.BLUR_ENGINES) {
+            Utils.blurBitmap(image, MAX_RADIUS, engine, mContext).recycle();
+        }
+        image.recycle();
+    }
+
+    private void compare(String name, Bitmap image, StringBuilder csv) {
+        PixelBuffer source = Pixels.read(image);
+        for (int radius = 1; radius <= MAX_RADIUS; radius++) {
+            PixelBuffer reference = GaussianBlur.blur(source, radius);
+            for (int i = 0; i < Utils.BLUR_ENGINES.length; i++) {
+                String engine = Utils.BLUR_ENGINES[i];
+                long start = System.nanoTime();
+                Bitmap blurred = Utils.blurBitmap(image, radius, engine, mContext);
+                long nanos = System.nanoTime() - start;
+                mNanos[i] += nanos;
+                PixelBuffer output = Pixels.read(blurred);
+                blurred.recycle();
+
+                csv.append(name).append(',').append(radius).append(',').append(engine).append(',');
+                double psnr = ImageQuality.psnr(reference, output);
+                double ssim = ImageQuality.ssim(reference, output);
+                boolean within = psnr >= mMinPsnr && ssim >= mMinSsim;
+                if (!within) {
+                    mFailed[i] = true;
+                    ModLog.w(TAG, "Engine differs from the reference, radius", radius);
+                }
+                csv.append(String.format(Locale.US, "%.2f,%.4f,", psnr, ssim)).append(nanos / 1000)
+                        .append(',').append(within ? "pass" : "fail").append('\n');
+            }
+        }
+    }
+
+    // Decoded and scaled down like the pipeline does before blurring
+    private static Bitmap decode(File file) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) return null;
+
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = 1;
+        while (opts.outWidth / (opts.inSampleSize * 2) >= BackgroundPipeline.MAX_BLUR_WIDTH) {
+            opts.inSampleSize *= 2;
+        }
+        Bitmap decoded = BitmapFactory.decodeFile(file.getPath(), opts);
+        if (decoded == null) return null;
+        Bitmap scaled = Utils.scaleToWidth(decoded, BackgroundPipeline.MAX_BLUR_WIDTH);
+        if (scaled != decoded) decoded.recycle();
+        return scaled;
+    }
+}
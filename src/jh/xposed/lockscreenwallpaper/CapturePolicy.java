@@ -0,0 +1,107 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+/**
+ * Decides how much work a see-through capture may do, based on battery and power saving
+ * state. The state is cached from broadcasts, so asking for a decision is just a few
+ * field reads.
+ */
+public class CapturePolicy {
+
+    public static final int CAPTURE_FULL = 0;
+    public static final int CAPTURE_REDUCED = 1;
+    public static final int CAPTURE_SKIP = 2;
+
+    // Width and height divisor for reduced captures, the keyguard scales
+    // the image down for blurring anyway
+    public static final int REDUCED_SCALE = 2;
+
+    private static final String ACTION_POWER_SAVE_MODE_CHANGED = "android.os.action.POWER_SAVE_MODE_CHANGED";
+    private static final int LEVEL_LOW = 15;
+    private static final int LEVEL_REDUCED = 30;
+    // Battery temperature in tenths of a degree Celsius
+    private static final int TEMPERATURE_HOT = 450;
+    private static final long MIN_INTERVAL_LOW_MS = 5 * 60 * 1000;
+
+    private volatile int mLevel = 100;
+    private volatile boolean mPlugged;
+    private volatile boolean mHot;
+    private volatile boolean mPowerSave;
+    private volatile long mLastCapture;
+
+    private PowerManager mPowerManager;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Intent.ACTION_BATTERY_CHANGED.equals(intent.getAction())) {
+                int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+                int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+                if (level >= 0 && scale > 0) {
+                    mLevel = level * 100 / scale;
+                }
+                mPlugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+                mHot = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0) >= TEMPERATURE_HOT;
+            } else {
+                mPowerSave = isPowerSaveMode();
+            }
+        }
+    };
+
+    public void register(Context context, Handler handler) {
+        mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        mPowerSave = isPowerSaveMode();
+
+        IntentFilter filter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+        filter.addAction(ACTION_POWER_SAVE_MODE_CHANGED);
+        // ACTION_BATTERY_CHANGED is sticky, so the current state is delivered right away
+        context.registerReceiver(mReceiver, filter, null, handler);
+    }
+
+    public int getCaptureMode() {
+        if (mPlugged) return CAPTURE_FULL;
+
+        if (mLevel <= LEVEL_LOW || mPowerSave || mHot) {
+            return SystemClock.elapsedRealtime() - mLastCapture < MIN_INTERVAL_LOW_MS
+                    ? CAPTURE_SKIP : CAPTURE_REDUCED;
+        }
+        return mLevel <= LEVEL_REDUCED ? CAPTURE_REDUCED : CAPTURE_FULL;
+    }
+
+    public void onCaptured() {
+        mLastCapture = SystemClock.elapsedRealtime();
+    }
+
+    // Power save mode doesn't exist before Lollipop
+    private boolean isPowerSaveMode() {
+        try {
+            return mPowerManager != null && (Boolean) PowerManager.class.getMethod("isPowerSaveMode").invoke(mPowerManager);
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Runs every image of a corpus directory through the lockscreen pipeline for a matrix of
+ * blur amounts, tints, rotations and display sizes, and reports one CSV row per run.
+ *
+ * Each image is first prepared the way the settings app stores it: center cropped to
+ * the display's aspect and scaled to its size, like the crop activity does, or published
+ * as it is for {@link #DISPLAY_SOURCE}. The pipeline then runs uncached, so every row
+ * has the decode, scale, blur, tint and rotate timings of a cold lock, the peak of the
+ * bitmaps it had live at once and the size of its output. Runs that run out of memory
+ * are reported as such and the corpus carries on with the next one.
+ */
+public class CorpusProfiler {
+
+    public static final String CSV_HEADER = "image,source_wxh,source_bytes,display,blur,tint,rotation,"
+            + "decode_us,scale_us,blur_us,tint_us,rotate_us,total_us,peak_bitmap_bytes,"
+            + "output_wxh,output_bytes,result";
+    public static final String TINT_NONE = "none";
+    // The image is used at its own size, as if it had been imported without cropping
+    public static final String DISPLAY_SOURCE = "source";
+
+    private static final String TAG = "CorpusProfiler";
+    private static final String SCRATCH_DIR = "corpus";
+    private static final int[] REPORTED_STAGES = {
+            PerfMetrics.STAGE_DECODE, PerfMetrics.STAGE_SCALE, PerfMetrics.STAGE_BLUR,
+            PerfMetrics.STAGE_TINT, PerfMetrics.STAGE_ROTATE
+    };
+
+    private final Context mContext;
+    private final int[] mBlurAmounts;
+    private final String[] mTints;
+    private final int[] mRotations;
+    private final String[] mDisplays;
+    private final long[] mStageNanos = new long[PerfMetrics.STAGE_NAMES.length];
+    private final BackgroundPipeline.StageListener mStageListener = new BackgroundPipeline.StageListener() {
+        @Override
+        public void onStage(int stage, long nanos, Bitmap output) {
+            // -1 until the stage has run
+            mStageNanos[stage] = Math.max(mStageNanos[stage], 0) + nanos;
+        }
+    };
+
+    // blurAmounts are blur amount preference values, tints see-through tint values or
+    // TINT_NONE, rotations in degrees and displays "WxH" or DISPLAY_SOURCE
+    public CorpusProfiler(Context context, int[] blurAmounts, String[] tints, int[] rotations,
+            String[] displays) {
+        mContext = context;
+        mBlurAmounts = blurAmounts;
+        mTints = tints;
+        mRotations = rotations;
+        mDisplays = displays;
+    }
+
+    public String run(File corpusDir) throws IOException {
+        File[] images = corpusDir.listFiles();
+        if (images == null) throw new IOException("Can't list " + corpusDir);
+        Arrays.sort(images);
+
+        File scratchDir = new File(mContext.getCacheDir(), SCRATCH_DIR);
+        if (!scratchDir.isDirectory() && !scratchDir.mkdirs()) {
+            throw new IOException("Can't create " + scratchDir);
+        }
+        File prepared = new File(scratchDir, BackgroundFile.LOCK_WALLPAPER);
+
+        StringBuilder csv = new StringBuilder(CSV_HEADER).append('\n');
+        try {
+            for (File image : images) {
+                if (!image.isFile()) continue;
+                profileImage(image, prepared, csv);
+            }
+        } finally {
+            BackgroundFile.clear(prepared);
+        }
+        return csv.toString();
+    }
+
+    private void profileImage(File image, File prepared, StringBuilder csv) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(image.getPath(), bounds);
+        String name = image.getName().replace(',', '_');
+        String imageColumns = name + ',' + bounds.outWidth + 'x' + bounds.outHeight + ',' + image.length();
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            appendFailure(csv, imageColumns, "", "not_an_image");
+            return;
+        }
+        ModLog.d(TAG, "Profiling", bounds.outWidth, bounds.outHeight);
+
+        for (String display : mDisplays) {
+            // Leftovers of the previous image shouldn't count against this one
+            Runtime.getRuntime().gc();
+            try {
+                prepare(image, bounds, display, prepared);
+            } catch (OutOfMemoryError e) {
+                appendFailure(csv, imageColumns, display, "prepare_oom");
+                continue;
+            } catch (Exception e) {
+                appendFailure(csv, imageColumns, display, "prepare_failed");
+                continue;
+            }
+
+            for (int blurAmount : mBlurAmounts) {
+                for (String tint : mTints) {
+                    for (int rotation : mRotations) {
+                        csv.append(imageColumns).append(',').append(display).append(',')
+                                .append(blurAmount).append(',').append(tint).append(',')
+                                .append(rotation).append(',');
+                        profileRun(prepared, blurAmount, tint, rotation, csv);
+                        csv.append('\n');
+                    }
+                }
+            }
+        }
+    }
+
+    // Appends the columns from decode_us on
+    private void profileRun(File prepared, int blurAmount, String tint, int rotation,
+            StringBuilder csv) {
+        BackgroundPipeline pipeline = BackgroundPipeline.forImage(prepared, blurAmount,
+                TINT_NONE.equals(tint) ? null : tint)
+                .add(new BackgroundProcessors.Rotate(rotation))
+                .setStageListener(mStageListener);
+        Arrays.fill(mStageNanos, -1);
+        Bitmap output = null;
+        String result;
+        long total;
+        BitmapAccounting.beginLock();
+        long start = System.nanoTime();
+        try {
+            output = pipeline.run(mContext);
+            result = output != null ? "ok" : "no_output";
+        } catch (OutOfMemoryError e) {
+            result = "oom";
+        } finally {
+            total = System.nanoTime() - start;
+        }
+        long peak = BitmapAccounting.lastPeak();
+
+        for (int stage : REPORTED_STAGES) {
+            if (mStageNanos[stage] >= 0) csv.append(mStageNanos[stage] / 1000);
+            csv.append(',');
+        }
+        csv.append(total / 1000).append(',').append(peak).append(',');
+        if (output != null) {
+            csv.append(output.getWidth()).append('x').append(output.getHeight()).append(',')
+                    .append(output.getByteCount());
+            output.recycle();
+        } else {
+            csv.append(',');
+        }
+        csv.append(',').append(result);
+    }
+
+    private static void prepare(File image, BitmapFactory.Options bounds, String display,
+            File prepared) throws IOException {
+        if (DISPLAY_SOURCE.equals(display)) {
+            BackgroundFile.publish(image, prepared);
+            return;
+        }
+
+        String[] size = display.split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = Integer.parseInt(size[1]);
+
+        // Center crop to the display's aspect, like the crop activity. The image is
+        // subsampled while decoding as long as the crop still covers the display.
+        float scale = Math.max((float) width / bounds.outWidth, (float) height / bounds.outHeight);
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inSampleSize = 1;
+        while (opts.inSampleSize * 2 * scale <= 1) {
+            opts.inSampleSize *= 2;
+        }
+        Bitmap sampled = BitmapFactory.decodeFile(image.getPath(), opts);
+        if (sampled == null) throw new IOException("Can't decode " + image);
+
+        Bitmap cropped = null;
+        try {
+            float sampledScale = Math.max((float) width / sampled.getWidth(),
+                    (float) height / sampled.getHeight());
+            int cropWidth = Math.min(sampled.getWidth(), Math.round(width / sampledScale));
+            int cropHeight = Math.min(sampled.getHeight(), Math.round(height / sampledScale));
+            Matrix matrix = new Matrix();
+            matrix.setScale((float) width / cropWidth, (float) height / cropHeight);
+            cropped = Bitmap.createBitmap(sampled, (sampled.getWidth() - cropWidth) / 2,
+                    (sampled.getHeight() - cropHeight) / 2, cropWidth, cropHeight, matrix, true);
+        } finally {
+            // createBitmap hands back its input when there is nothing to crop or scale
+            if (cropped != sampled) sampled.recycle();
+        }
+
+        try {
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            cropped.compress(Bitmap.CompressFormat.PNG, 100, png);
+            byte[] payload = png.toByteArray();
+            BackgroundFile.write(prepared, cropped.getWidth(), cropped.getHeight(), 0,
+                    payload, payload.length);
+        } finally {
+            cropped.recycle();
+        }
+    }
+
+    private static void appendFailure(StringBuilder csv, String imageColumns, String display, String result) {
+        // Everything between display and result is left empty
+        csv.append(imageColumns).append(',').append(display).append(",,,,,,,,,,,,,").append(result)
+                .append('\n');
+    }
+}
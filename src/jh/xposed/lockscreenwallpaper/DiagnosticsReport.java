@@ -0,0 +1,199 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper;
+
+import android.os.Build;
+import android.os.Bundle;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Performance report built from the snapshots the hooked processes return for
+ * {@link PerfMetrics#ACTION_COLLECT}.
+ *
+ * The CSV export has one "process,section,name,field,value" row per number, so reports
+ * from many devices can be concatenated and grouped without knowing the stage list. The
+ * JSON export nests the same values by process, section and name, and adds the device.
+ */
+public class DiagnosticsReport {
+
+    public static final String[] PROCESSES = {
+            PerfMetrics.PROCESS_KEYGUARD, PerfMetrics.PROCESS_SYSTEM
+    };
+
+    private static final String SECTION_STAGES = "stages";
+    private static final String SECTION_COUNTERS = "counters";
+    private static final String SECTION_BITMAPS = "bitmaps";
+    private static final String[] STAGE_FIELDS = { "count", "p50_us", "p95_us", "max_us" };
+    private static final String[] BITMAP_FIELDS = { "last_lock_bytes", "total_bytes", "count" };
+    private static final String FIELD_VALUE = "value";
+
+    private final Bundle mData;
+    private final long mTime;
+
+    public DiagnosticsReport(Bundle data) {
+        mData = data;
+        mTime = System.currentTimeMillis();
+    }
+
+    public boolean isEmpty() {
+        for (String process : PROCESSES) {
+            if (mData.getString(process) != null) return false;
+        }
+        return true;
+    }
+
+    public String getStages(String process) {
+        return PerfMetrics.format(mData.getString(process));
+    }
+
+    public String getBitmaps(String process) {
+        return BitmapAccounting.format(mData.getString(process + PerfMetrics.EXTRA_BITMAPS_SUFFIX));
+    }
+
+    // Counters, with the keyguard cache hit rates worked out
+    public String getCounters(String process) {
+        String snapshot = mData.getString(process + PerfMetrics.EXTRA_COUNTERS_SUFFIX);
+        if (snapshot == null) return null;
+
+        StringBuilder sb = new StringBuilder();
+        long hits = 0;
+        long partialHits = 0;
+        long misses = 0;
+        for (String line : snapshot.split("\n")) {
+            String[] fields = line.split(",");
+            if (fields.length != 2) continue;
+            sb.append(fields[0]).append(": ").append(fields[1]).append('\n');
+            if (fields[0].equals(PerfMetrics.COUNTER_NAMES[PerfMetrics.COUNTER_CACHE_HITS])) {
+                hits = Long.parseLong(fields[1]);
+            } else if (fields[0].equals(PerfMetrics.COUNTER_NAMES[PerfMetrics.COUNTER_CACHE_PARTIAL_HITS])) {
+                partialHits = Long.parseLong(fields[1]);
+            } else if (fields[0].equals(PerfMetrics.COUNTER_NAMES[PerfMetrics.COUNTER_CACHE_MISSES])) {
+                misses = Long.parseLong(fields[1]);
+            }
+        }
+        long lookups = hits + partialHits + misses;
+        if (lookups > 0) {
+            sb.append(String.format(Locale.US, "cache_hit_rate: %.0f%% (%.0f%% partial)\n",
+                    hits * 100f / lookups, partialHits * 100f / lookups));
+        }
+        return sb.toString();
+    }
+
+    public String toCsv() {
+        StringBuilder sb = new StringBuilder("process,section,name,field,value\n");
+        for (String[] row : rows()) {
+            sb.append(row[0]).append(',').append(row[1]).append(',').append(row[2]).append(',')
+                    .append(row[3]).append(',').append(row[4]).append('\n');
+        }
+        return sb.toString();
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject device = new JSONObject();
+        device.put("manufacturer", Build.MANUFACTURER);
+        device.put("model", Build.MODEL);
+        device.put("release", Build.VERSION.RELEASE);
+        device.put("sdk", Build.VERSION.SDK_INT);
+
+        JSONObject json = new JSONObject();
+        json.put("time", mTime);
+        json.put("device", device);
+        for (String[] row : rows()) {
+            JSONObject process = json.optJSONObject(row[0]);
+            if (process == null) {
+                process = new JSONObject();
+                json.put(row[0], process);
+            }
+            JSONObject section = process.optJSONObject(row[1]);
+            if (section == null) {
+                section = new JSONObject();
+                process.put(row[1], section);
+            }
+            if (row[3].equals(FIELD_VALUE)) {
+                section.put(row[2], Long.parseLong(row[4]));
+            } else {
+                JSONObject name = section.optJSONObject(row[2]);
+                if (name == null) {
+                    name = new JSONObject();
+                    section.put(row[2], name);
+                }
+                name.put(row[3], Long.parseLong(row[4]));
+            }
+        }
+        return json;
+    }
+
+    // Writes the CSV and JSON forms next to each other, returns the written files
+    public File[] export(File dir) throws IOException, JSONException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        String name = "diagnostics-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date(mTime));
+        File csv = new File(dir, name + ".csv");
+        File json = new File(dir, name + ".json");
+        writeString(csv, toCsv());
+        writeString(json, toJson().toString(2));
+        return new File[] { csv, json };
+    }
+
+    private List<String[]> rows() {
+        List<String[]> rows = new ArrayList<String[]>();
+        for (String process : PROCESSES) {
+            addRows(rows, process, SECTION_STAGES, mData.getString(process), STAGE_FIELDS);
+            addRows(rows, process, SECTION_COUNTERS,
+                    mData.getString(process + PerfMetrics.EXTRA_COUNTERS_SUFFIX), null);
+            addRows(rows, process, SECTION_BITMAPS,
+                    mData.getString(process + PerfMetrics.EXTRA_BITMAPS_SUFFIX), BITMAP_FIELDS);
+        }
+        return rows;
+    }
+
+    // Snapshot lines are "name,value" or "name," followed by one value per field
+    private static void addRows(List<String[]> rows, String process, String section,
+            String snapshot, String[] fieldNames) {
+        if (snapshot == null) return;
+        for (String line : snapshot.split("\n")) {
+            String[] fields = line.split(",");
+            if (fields.length == 2) {
+                rows.add(new String[] { process, section, fields[0], FIELD_VALUE, fields[1] });
+            } else if (fieldNames != null && fields.length == fieldNames.length + 1) {
+                for (int i = 0; i < fieldNames.length; i++) {
+                    rows.add(new String[] { process, section, fields[0], fieldNames[i], fields[i + 1] });
+                }
+            }
+        }
+    }
+
+    private static void writeString(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
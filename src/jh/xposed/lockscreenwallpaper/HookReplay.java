@@ -0,0 +1,352 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.Point;
+import android.os.Debug;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Display;
+import android.view.View;
+import android.view.WindowManager;
+import jh.xposed.lockscreenwallpaper.core.SyntheticImage;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Replays keyguard and power events through the hook bodies of {@link ModLockscreen} and
+ * {@link ModDisplay}, with stand-ins for the framework objects they reach into. Run by
+ * {@link ProfilingService} in the settings app, so the integration paths can be timed
+ * without locking a real device. The hooks get the app's own preferences and log to
+ * logcat, and nothing on the replayed paths touches the Xposed framework, so this also
+ * runs on a device without it.
+ *
+ * A script has one event per line, optionally repeated with a trailing "xN":
+ *
+ * lock                 maybeCreateKeyguardLocked
+ * unlock               KeyguardViewManager.hide
+ * screen_off           requestPowerState to off, waits for the capture it starts
+ * screen_on            requestPowerState to bright
+ * screen_change        the next screenshots show different content
+ * host_size W H        size of the keyguard host, 0 0 for one that isn't laid out yet
+ *
+ * Lines starting with # are comments. The stored settings are used, and files are
+ * read and written in a separate directory.
+ *
+ * {@link #checkSteadyState(int, int, long)} instead repeats the same lock, and checks that
+ * once warmed up the lock path allocates no bitmap and only a few small objects. It first
+ * puts the image the stored settings need into the replay directory, and every lock has
+ * to dispatch a background, so the check can't pass by building nothing.
+ */
+public class HookReplay {
+
+    public static final String CSV_HEADER = "index,event,latency_us,alloc_bytes,alloc_count,bitmaps,result";
+    public static final String DEFAULT_SCRIPT = "replay/default.replay";
+
+    private static final long CAPTURE_TIMEOUT_MS = 5000;
+
+    // A plain view, so layout listeners fire when its size is set with layout()
+    public static class FakeKeyguardHost extends View {
+        public FakeKeyguardHost(Context context) {
+            super(context);
+        }
+    }
+
+    // Stand-in for com.android.keyguard.KeyguardUpdateMonitor
+    public static class FakeKeyguardUpdateMonitor {
+        private static final FakeKeyguardUpdateMonitor sInstance = new FakeKeyguardUpdateMonitor();
+        private int mDispatched;
+
+        public static FakeKeyguardUpdateMonitor getInstance(Context context) {
+            return sInstance;
+        }
+
+        public void dispatchSetBackground(Bitmap bmp) {
+            mDispatched++;
+        }
+    }
+
+    // Stand-in for com.android.server.power.DisplayPowerRequest
+    public static class FakeDisplayPowerRequest {
+        public static final int SCREEN_STATE_OFF = 0;
+        public static final int SCREEN_STATE_BRIGHT = 2;
+
+        public final int screenState;
+
+        public FakeDisplayPowerRequest(int screenState) {
+            this.screenState = screenState;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof FakeDisplayPowerRequest && ((FakeDisplayPowerRequest) o).screenState == screenState;
+        }
+
+        @Override
+        public int hashCode() {
+            return screenState;
+        }
+    }
+
+    // Screenshots of made up content, prepared once per size and content
+    private static class FakeScreen implements ModDisplay.ScreenSource {
+        private final Map<String, Bitmap> mScreens = new HashMap<String, Bitmap>();
+        private volatile int mContent = 1;
+
+        @Override
+        public Bitmap screenshot(int width, int height) {
+            String key = width + "x" + height + "/" + mContent;
+            Bitmap screen;
+            synchronized (mScreens) {
+                screen = mScreens.get(key);
+                if (screen == null) {
+                    screen = Pixels.toBitmap(SyntheticImage.create(width, height, mContent));
+                    mScreens.put(key, screen);
+                }
+            }
+            // The caller recycles what it gets
+            return screen.copy(Bitmap.Config.ARGB_8888, false);
+        }
+    }
+
+    // Keeps the hooks' files apart from the real ones and their receivers unregistered,
+    // so a replay doesn't answer diagnostics collection as if it were the keyguard
+    private static class ReplayContext extends ContextWrapper {
+        private final File mFilesDir;
+
+        ReplayContext(Context base, File filesDir) {
+            super(base);
+            mFilesDir = filesDir;
+        }
+
+        @Override
+        public File getFilesDir() {
+            return mFilesDir;
+        }
+
+        @Override
+        public Context createPackageContext(String packageName, int flags) {
+            return this;
+        }
+
+        @Override
+        public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+            return null;
+        }
+
+        @Override
+        public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter,
+                String broadcastPermission, Handler scheduler) {
+            return null;
+        }
+    }
+
+    private final Context mContext;
+    // Stands in for the system_server owned capture directory
+    private final File mSeeThroughDir;
+    private final SharedPreferences mPrefs;
+    private final Point mDisplaySize = new Point();
+    private final FakeScreen mScreen = new FakeScreen();
+    private final FakeKeyguardHost mKeyguardHost;
+    // What DisplayPowerController.mPendingRequestLocked would be
+    private FakeDisplayPowerRequest mPendingRequest;
+    private final StringBuilder mReport = new StringBuilder(CSV_HEADER).append('\n');
+    private int mIndex;
+    private long mLastAllocBytes;
+    private int mLastBitmaps;
+    private boolean mLastDispatched;
+
+    public HookReplay(Context context) throws Throwable {
+        File filesDir = new File(context.getCacheDir(), "replay");
+        if (!filesDir.isDirectory() && !filesDir.mkdirs()) {
+            throw new IOException("Can't create " + filesDir);
+        }
+        mSeeThroughDir = new File(filesDir, BackgroundFile.LEGACY_SEE_THROUGH_DIR);
+        mContext = new ReplayContext(context, filesDir);
+
+        ModLog.setSink(new ModLog.Sink() {
+            @Override
+            public void log(int level, String tag, String message) {
+                Log.println(level >= ModLog.ERROR ? Log.ERROR : Log.WARN, tag, message);
+            }
+        });
+        mPrefs = context.getSharedPreferences(XposedLockscreenWallpaper.PACKAGE_NAME + "_preferences",
+                Context.MODE_WORLD_READABLE);
+        ModLockscreen.setUpReplay(mPrefs, FakeKeyguardUpdateMonitor.class, mSeeThroughDir);
+        ModDisplay.setUpReplay(mPrefs, FakeDisplayPowerRequest.SCREEN_STATE_OFF, mScreen, mSeeThroughDir);
+        ModDisplay.onDisplayPowerControllerCreated(mContext);
+
+        Display display = ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
+        display.getRealSize(mDisplaySize);
+        mKeyguardHost = new FakeKeyguardHost(context);
+        mKeyguardHost.layout(0, 0, mDisplaySize.x, mDisplaySize.y);
+    }
+
+    public static InputStream openDefaultScript(Context context) throws IOException {
+        return context.getAssets().open(DEFAULT_SCRIPT);
+    }
+
+    // Returns the report as CSV, one line per event
+    @SuppressWarnings("deprecation")
+    public String run(InputStream script) throws Throwable {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(script, "UTF-8"));
+        Debug.startAllocCounting();
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+
+                String[] words = line.split("\\s+");
+                int repeat = 1;
+                if (words.length > 1 && words[words.length - 1].matches("x\\d+")) {
+                    repeat = Integer.parseInt(words[words.length - 1].substring(1));
+                }
+                for (int i = 0; i < repeat; i++) {
+                    replay(words);
+                }
+            }
+        } finally {
+            Debug.stopAllocCounting();
+            reader.close();
+        }
+        return mReport.toString();
+    }
+
+    // Replays warmup locks, then locks that each have to stay within maxAllocBytes
+    // without allocating a bitmap. Every lock has to dispatch a background. Every event
+    // is reported, see getReport().
+    @SuppressWarnings("deprecation")
+    public boolean checkSteadyState(int warmup, int locks, long maxAllocBytes) throws Throwable {
+        final String[] lock = { "lock" };
+        boolean steady = true;
+        Debug.startAllocCounting();
+        try {
+            seedBackground();
+            for (int i = 0; i < warmup; i++) {
+                replay(lock);
+                if (!mLastDispatched) steady = false;
+            }
+            for (int i = 0; i < locks; i++) {
+                replay(lock);
+                if (!mLastDispatched || mLastBitmaps > 0 || mLastAllocBytes > maxAllocBytes) {
+                    steady = false;
+                }
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        return steady;
+    }
+
+    public String getReport() {
+        return mReport.toString();
+    }
+
+    // The replay directory starts out empty, so an image or see-through lock would have
+    // nothing to build. Publishes a wallpaper, or captures the screen like a screen off.
+    private void seedBackground() throws Throwable {
+        String bgType = mPrefs.getString(SettingsActivity.PREF_KEY_LOCKSCREEN_BACKGROUND,
+                SettingsActivity.LOCKSCREEN_BG_DEFAULT);
+        if (bgType.equals(SettingsActivity.LOCKSCREEN_BG_IMAGE)) {
+            File wallpaper = new File(mContext.getFilesDir(), BackgroundFile.LOCK_WALLPAPER);
+            if (BackgroundFile.readHeader(wallpaper) == null) {
+                writeWallpaper(wallpaper, mDisplaySize.x, mDisplaySize.y);
+            }
+        } else if (bgType.equals(SettingsActivity.LOCKSCREEN_BG_SEE_THROUGH)) {
+            replay(new String[] { "screen_off" });
+            File capture = new File(mSeeThroughDir, BackgroundFile.SEE_THROUGH_IMAGE);
+            if (BackgroundFile.readHeader(capture) == null) {
+                throw new IOException("No see-through image was captured");
+            }
+        }
+    }
+
+    private static void writeWallpaper(File file, int width, int height) throws IOException {
+        Bitmap bmp = Pixels.toBitmap(SyntheticImage.create(width, height, 1));
+        try {
+            ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+            bmp.compress(Bitmap.CompressFormat.JPEG, 90, jpeg);
+            byte[] payload = jpeg.toByteArray();
+            BackgroundFile.write(file, width, height, 0, payload, payload.length);
+        } finally {
+            bmp.recycle();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void replay(String[] words) throws Throwable {
+        final String event = words[0];
+        final FakeKeyguardUpdateMonitor monitor = FakeKeyguardUpdateMonitor.sInstance;
+        // The hook only starts a lock when it has a background to build
+        BitmapAccounting.beginLock();
+        Debug.resetGlobalAllocSize();
+        Debug.resetGlobalAllocCount();
+        long start = System.nanoTime();
+        String result;
+
+        if (event.equals("lock")) {
+            int dispatched = monitor.mDispatched;
+            ModLockscreen.onKeyguardCreated(mContext, mKeyguardHost);
+            mLastDispatched = monitor.mDispatched > dispatched;
+            result = mLastDispatched ? "dispatched" : "not_dispatched";
+        } else if (event.equals("unlock")) {
+            ModLockscreen.onKeyguardHidden();
+            result = "hidden";
+        } else if (event.equals("screen_off") || event.equals("screen_on")) {
+            FakeDisplayPowerRequest request = new FakeDisplayPowerRequest(event.equals("screen_off")
+                    ? FakeDisplayPowerRequest.SCREEN_STATE_OFF : FakeDisplayPowerRequest.SCREEN_STATE_BRIGHT);
+            ModDisplay.onRequestPowerState(request, mPendingRequest, request.screenState);
+            // What requestPowerState itself would do next
+            mPendingRequest = request;
+            result = ModDisplay.awaitCaptures(CAPTURE_TIMEOUT_MS) ? "done" : "timeout";
+        } else if (event.equals("screen_change")) {
+            mScreen.mContent++;
+            result = "content_" + mScreen.mContent;
+        } else if (event.equals("host_size") && words.length >= 3) {
+            // Dispatches a background that waited for the host to be laid out
+            int dispatched = monitor.mDispatched;
+            mKeyguardHost.layout(0, 0,
+                    Integer.parseInt(words[1]), Integer.parseInt(words[2]));
+            result = words[1] + "x" + words[2] + (monitor.mDispatched > dispatched ? "_dispatched" : "");
+        } else {
+            throw new IllegalArgumentException("Unknown replay event: " + event);
+        }
+
+        long latency = (System.nanoTime() - start) / 1000;
+        // Allocations of every thread, captures run on their own
+        mLastAllocBytes = Debug.getGlobalAllocSize();
+        mLastBitmaps = BitmapAccounting.lastCount();
+        mReport.append(mIndex++).append(',').append(event).append(',').append(latency).append(',')
+                .append(mLastAllocBytes).append(',').append(Debug.getGlobalAllocCount()).append(',')
+                .append(mLastBitmaps).append(',').append(result).append('\n');
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.os.Debug;
+import android.util.Log;
+import jh.xposed.lockscreenwallpaper.core.BenchmarkRunner;
+import jh.xposed.lockscreenwallpaper.core.SyntheticImage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks the Bitmap based scale, tint and rotate stages and every blur engine on
+ * the device, run through {@link ProfilingService}.
+ *
+ * Sources go from 720p to 1440p displays plus a 12 MP photo. Like in the pipeline they
+ * are scaled down to {@link BackgroundPipeline#MAX_BLUR_WIDTH} before the other stages.
+ * Everything is measured including its output bitmap, since that is how it is used.
+ * The core kernels on their own are benchmarked with JMH, see core/src/jmh.
+ */
+public class KernelBenchmarks {
+
+    private static final String TAG = "KernelBenchmarks";
+
+    private static final String[] SIZE_NAMES = { "720p", "1080p", "1440p", "12mp" };
+    private static final int[][] SIZES = { { 720, 1280 }, { 1080, 1920 }, { 1440, 2560 }, { 3024, 4032 } };
+    // What pref_lockscreen_blur_amount gives: 0 to 100 divided by 4, 0 becoming 1
+    private static final int[] RADII = { 1, 6, 12, 18, 25 };
+    private static final int TINT = 0x7f000000;
+    private static final int ROTATION = 90;
+
+    // Needs Debug.startAllocCounting(), see run()
+    public static final BenchmarkRunner.AllocationMeter THREAD_ALLOCATIONS = new BenchmarkRunner.AllocationMeter() {
+        @Override
+        public void reset() {
+            Debug.resetThreadAllocSize();
+            Debug.resetThreadAllocCount();
+        }
+
+        @Override
+        public long bytes() {
+            return Debug.getThreadAllocSize();
+        }
+
+        @Override
+        public long count() {
+            return Debug.getThreadAllocCount();
+        }
+    };
+
+    @SuppressWarnings("deprecation")
+    public static List<BenchmarkRunner.Result> run(Context context, int warmup, int iterations) {
+        List<BenchmarkRunner.Result> results = new ArrayList<BenchmarkRunner.Result>();
+        Debug.startAllocCounting();
+        try {
+            for (int i = 0; i < SIZES.length; i++) {
+                try {
+                    runSize(context, SIZE_NAMES[i], SIZES[i][0], SIZES[i][1], warmup, iterations, results);
+                } catch (OutOfMemoryError e) {
+                    Log.w(TAG, "Out of memory at " + SIZE_NAMES[i] + ", skipped");
+                }
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        return results;
+    }
+
+    private static void runSize(final Context context, String sizeName, int width, int height,
+            int warmup, int iterations, List<BenchmarkRunner.Result> results) {
+        final int maxWidth = BackgroundPipeline.MAX_BLUR_WIDTH;
+        String params = sizeName + "/" + width + "x" + height;
+        long pixels = (long) width * height;
+
+        // Scale, from the full size source
+        final Bitmap source = Pixels.toBitmap(SyntheticImage.create(width, height, 1));
+        results.add(BenchmarkRunner.measure("scale.native", params, pixels, new BenchmarkRunner.Task() {
+            @Override
+            public void run() {
+                Bitmap out = Utils.scaleToWidth(source, maxWidth);
+                if (out != source) out.recycle();
+            }
+        }, warmup, iterations, THREAD_ALLOCATIONS));
+
+        final Bitmap scaled = Utils.scaleToWidth(source, maxWidth);
+        if (scaled != source) source.recycle();
+
+        // Everything else on the scaled image
+        params += "/" + scaled.getWidth() + "x" + scaled.getHeight();
+        pixels = (long) scaled.getWidth() * scaled.getHeight();
+
+        // The RenderScript context is created once per process, keep it out of the timings
+        Utils.prepareBlur(context);
+        for (final String engine : Utils.BLUR_ENGINES) {
+            for (final int radius : RADII) {
+                results.add(BenchmarkRunner.measure("blur." + engine, params + "/r" + radius, pixels,
+                        new BenchmarkRunner.Task() {
+                            @Override
+                            public void run() {
+                                Utils.blurBitmap(scaled, radius, engine, context).recycle();
+                            }
+                        }, warmup, iterations, THREAD_ALLOCATIONS));
+            }
+        }
+
+        results.add(BenchmarkRunner.measure("tint.canvas", params, pixels, new BenchmarkRunner.Task() {
+            @Override
+            public void run() {
+                Bitmap out = Bitmap.createBitmap(scaled.getWidth(), scaled.getHeight(), Bitmap.Config.ARGB_8888);
+                Canvas canvas = new Canvas(out);
+                canvas.drawBitmap(scaled, 0, 0, null);
+                canvas.drawColor(TINT);
+                out.recycle();
+            }
+        }, warmup, iterations, THREAD_ALLOCATIONS));
+        final BackgroundProcessor tint = new BackgroundProcessors.Tint(TINT);
+        results.add(BenchmarkRunner.measure("tint.processor", params, pixels, new BenchmarkRunner.Task() {
+            @Override
+            public void run() {
+                tint.process(scaled, false, context).recycle();
+            }
+        }, warmup, iterations, THREAD_ALLOCATIONS));
+
+        results.add(BenchmarkRunner.measure("rotate.matrix", params, pixels, new BenchmarkRunner.Task() {
+            @Override
+            public void run() {
+                Matrix matrix = new Matrix();
+                matrix.postRotate(ROTATION);
+                Bitmap.createBitmap(scaled, 0, 0, scaled.getWidth(), scaled.getHeight(), matrix, true).recycle();
+            }
+        }, warmup, iterations, THREAD_ALLOCATIONS));
+        final BackgroundProcessor rotate = new BackgroundProcessors.Rotate(ROTATION);
+        results.add(BenchmarkRunner.measure("rotate.processor", params, pixels, new BenchmarkRunner.Task() {
+            @Override
+            public void run() {
+                rotate.process(scaled, false, context).recycle();
+            }
+        }, warmup, iterations, THREAD_ALLOCATIONS));
+
+        scaled.recycle();
+    }
+}
@@ -18,14 +18,25 @@ package jh.xposed.lockscreenwallpaper;
 
 import android.app.KeyguardManager;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.graphics.Bitmap;
+import android.graphics.Point;
+import android.hardware.display.DisplayManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.view.Display;
+import android.view.Surface;
 import de.robv.android.xposed.XC_MethodHook;
 import de.robv.android.xposed.XSharedPreferences;
 import de.robv.android.xposed.XposedBridge;
 import de.robv.android.xposed.XposedHelpers;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class ModDisplay {
 
@@ -33,20 +44,97 @@ public class ModDisplay {
     private static final String CLASS_DISPLAY_POWER_CONTROLLER = "com.android.server.power.DisplayPowerController";
     private static final String CLASS_DISPLAY_POWER_REQUEST = "com.android.server.power.DisplayPowerRequest";
     private static final String CLASS_SURFACE_CONTROL = "android.view.SurfaceControl";
-    private static final boolean DEBUG = false;
+    // The keyguard is only ever shown on the default display
+    private static final int KEYGUARD_DISPLAY = Display.DEFAULT_DISPLAY;
+    // A capture that takes longer than this is thrown away
+    private static final long CAPTURE_BUDGET_MS = 1000;
 
-    private static XSharedPreferences mPrefs;
+    private static SharedPreferences mPrefs;
+    // XSharedPreferences have to be reloaded to see changes made in the settings app,
+    // the app's own preferences a replay passes in are always current
+    private static boolean mReloadPrefs;
     private static Context mContext;
+    private static File mSeeThroughDir = BackgroundFile.seeThroughDir();
+    // Whether the last power request was made with the see-through background selected
+    private static boolean mSeeThroughSelected;
     private static KeyguardManager mKeyguardManager;
     private static int SCREEN_STATE_OFF;
+    private static DisplayManager mDisplayManager;
+    private static Handler mCaptureHandler;
+    private static volatile CaptureJob mCaptureJob;
+    private static final CapturePolicy mCapturePolicy = new CapturePolicy();
+    // Natural size of the keyguard display, kept up to date by mDisplayListener
+    private static final Point mDisplaySize = new Point();
 
-    private static void log(String message) {
-        XposedBridge.log(TAG + ": " + message);
+    // Where captures come from, replaced by scripted screens in a replay
+    interface ScreenSource {
+        Bitmap screenshot(int width, int height);
+    }
+
+    private static ScreenSource mScreenSource = new ScreenSource() {
+        @Override
+        public Bitmap screenshot(int width, int height) {
+            final Class<?> surfaceControlClass = XposedHelpers.findClass(CLASS_SURFACE_CONTROL, null);
+            return (Bitmap) XposedHelpers.callStaticMethod(surfaceControlClass, "screenshot",
+                    width, height, 0, 22000);
+        }
+    };
+
+    private static final DisplayManager.DisplayListener mDisplayListener = new DisplayManager.DisplayListener() {
+        @Override
+        public void onDisplayAdded(int displayId) {
+            updateDisplaySize(displayId);
+        }
+
+        @Override
+        public void onDisplayChanged(int displayId) {
+            updateDisplaySize(displayId);
+        }
+
+        @Override
+        public void onDisplayRemoved(int displayId) {
+        }
+    };
+
+    // A single capture, cancelled by the next power state transition. Every
+    // stage checks it before doing more work and nothing is published once
+    // it has been cancelled or has run past its deadline, so the previous
+    // complete frame stays in place.
+    private static class CaptureJob implements Runnable {
+        private final long mDeadline;
+        private volatile boolean mCancelled;
+
+        CaptureJob(long budget) {
+            mDeadline = SystemClock.uptimeMillis() + budget;
+        }
+
+        void cancel() {
+            mCancelled = true;
+        }
+
+        boolean isAborted() {
+            return mCancelled || SystemClock.uptimeMillis() > mDeadline;
+        }
+
+        @Override
+        public void run() {
+            if (isAborted()) return;
+            boolean traced = Tracing.begin(Tracing.SECTION_CAPTURE);
+            long captureStart = PerfMetrics.start();
+            try {
+                captureSeeThroughImage(this);
+            } finally {
+                PerfMetrics.record(PerfMetrics.STAGE_CAPTURE, captureStart);
+                Tracing.end(traced);
+            }
+        }
     }
 
     public static void init(XSharedPreferences prefs) {
         try {
             mPrefs = prefs;
+            mReloadPrefs = true;
+            Tracing.init(Tracing.TAG_POWER);
             final Class<?> dpcClass = XposedHelpers.findClass(CLASS_DISPLAY_POWER_CONTROLLER, null);
             final Class<?> dprClass = XposedHelpers.findClass(CLASS_DISPLAY_POWER_REQUEST, null);
             SCREEN_STATE_OFF = XposedHelpers.getStaticIntField(dprClass, "SCREEN_STATE_OFF");
@@ -54,21 +142,7 @@ public class ModDisplay {
             XposedBridge.hookAllConstructors(dpcClass, new XC_MethodHook() {
                 @Override
                 protected void afterHookedMethod(MethodHookParam param) throws Throwable {
-                    Context context = (Context) param.args[1];
-                    mKeyguardManager = (KeyguardManager) context.getSystemService(Context.KEYGUARD_SERVICE);
-                    mContext = context.createPackageContext(XposedLockscreenWallpaper.PACKAGE_NAME, 0);
-
-                    try {
-                        // Clear the previously saved see-through image
-                        // This is to make sure it is not displayed during reboots
-                        if (DEBUG) log("Clearing previous see through image");
-                        File seeThroughImage = new File(mContext.getFilesDir(), "seethroughimage");
-                        FileOutputStream out = new FileOutputStream(seeThroughImage);
-                        out.flush();
-                        out.close();
-                    } catch (Exception e) {
-                        log("ERROR (DPC constructor): " + e.getLocalizedMessage());
-                    }
+                    onDisplayPowerControllerCreated((Context) param.args[1]);
                 }
             });
 
@@ -76,69 +150,256 @@ public class ModDisplay {
                     new XC_MethodHook() {
                         @Override
                         protected void beforeHookedMethod(final MethodHookParam param) throws Throwable {
-                            mPrefs.reload();
-                            final String bgType = mPrefs.getString(
-                                    SettingsActivity.PREF_KEY_LOCKSCREEN_BACKGROUND,
-                                    SettingsActivity.LOCKSCREEN_BG_DEFAULT);
-                            if (!bgType.equals(SettingsActivity.LOCKSCREEN_BG_SEE_THROUGH)) return;
-
                             Object request = param.args[0];
-                            Object pendingRequestLocked = XposedHelpers.getObjectField(param.thisObject,
-                                    "mPendingRequestLocked");
-                            if (pendingRequestLocked == null || !pendingRequestLocked.equals(request)) {
-                                int screenState = XposedHelpers.getIntField(request, "screenState");
-                                if (DEBUG) log("Screen state: " + screenState);
-                                if (screenState == SCREEN_STATE_OFF && !mKeyguardManager.isKeyguardLocked()) {
-                                    boolean waitForNegativeProximity = (Boolean) param.args[1];
-                                    boolean pendingWaitForNegativeProximity = XposedHelpers.getBooleanField(
-                                            param.thisObject, "mPendingWaitForNegativeProximityLocked");
-                                    boolean displayReadyLocked = XposedHelpers.getBooleanField(param.thisObject,
-                                            "mDisplayReadyLocked");
-                                    boolean pendingRequestChangedLocked = XposedHelpers.getBooleanField(param.thisObject,
-                                            "mPendingRequestChangedLocked");
-                                    if (DEBUG) {
-                                        log("waitForNegativeProximity: " + waitForNegativeProximity);
-                                        log("pendingWaitForNegativeProximity: " + pendingWaitForNegativeProximity);
-                                        log("displayReadyLocked: " + displayReadyLocked);
-                                        log("pendingRequestChangedLocked: " + pendingRequestChangedLocked);
-                                    }
-//                                    if ((displayReadyLocked || !pendingRequestChangedLocked) &&
-//                                            (waitForNegativeProximity &&
-//                                                    !pendingWaitForNegativeProximity ||
-//                                                    pendingRequestLocked == null ||
-//                                                    !pendingRequestLocked.equals(request))) {
-                                    new Thread(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            try {
-                                                File seeThroughImage = new File(mContext.getFilesDir(), "seethroughimage");
-                                                FileOutputStream out = new FileOutputStream(seeThroughImage);
-
-                                                Object displayManager = XposedHelpers.getObjectField(param.thisObject, "mDisplayManager");
-                                                int[] displayIds = (int[]) XposedHelpers.callMethod(displayManager, "getDisplayIds");
-                                                Object displayInfo = XposedHelpers.callMethod(displayManager, "getDisplayInfo", displayIds[0]);
-                                                int naturalWidth = (Integer) XposedHelpers.callMethod(displayInfo, "getNaturalWidth");
-                                                int naturalHeight = (Integer) XposedHelpers.callMethod(displayInfo, "getNaturalHeight");
-                                                final Class<?> surfaceControlClass = XposedHelpers.findClass(CLASS_SURFACE_CONTROL, null);
-                                                Bitmap bmp = (Bitmap) XposedHelpers.callStaticMethod(surfaceControlClass, "screenshot",
-                                                        naturalWidth, naturalHeight, 0, 22000);
-                                                if (bmp != null) {
-                                                    boolean saveSuccess = bmp.compress(Bitmap.CompressFormat.JPEG, 85, out);
-                                                    if (DEBUG) log("Bitmap saved: " + saveSuccess);
-                                                }
-                                                out.flush();
-                                                out.close();
-                                            } catch (Exception e) {
-                                                log("ERROR (requestPowerState): " + e.getLocalizedMessage());
-                                            }
-                                        }
-                                    }).start();
-                                }
-                            }
+                            if (ModLog.isLoggable(ModLog.DEBUG)) logPowerRequest(param);
+                            onRequestPowerState(request,
+                                    XposedHelpers.getObjectField(param.thisObject, "mPendingRequestLocked"),
+                                    XposedHelpers.getIntField(request, "screenState"));
                         }
                     });
         } catch (Throwable t) {
             XposedBridge.log(t);
         }
     }
+
+    // Body of the DisplayPowerController constructor hook, context is the system context
+    static void onDisplayPowerControllerCreated(Context context) throws Throwable {
+        mKeyguardManager = (KeyguardManager) context.getSystemService(Context.KEYGUARD_SERVICE);
+        mContext = context.createPackageContext(XposedLockscreenWallpaper.PACKAGE_NAME, 0);
+
+        try {
+            // Clear the previously saved see-through images
+            // This is to make sure they are not displayed during reboots
+            ModLog.d(TAG, "Clearing previous see through images");
+            File[] files = mSeeThroughDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().startsWith(BackgroundFile.SEE_THROUGH_IMAGE)) {
+                        BackgroundFile.clear(file);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            ModLog.e(TAG, "ERROR (DPC constructor)", e);
+        }
+
+        try {
+            // Track displays through callbacks instead of asking
+            // the display manager for their sizes on every capture
+            // A replay may create more than one controller in the same process
+            if (mCaptureHandler != null) return;
+            // The capture races the screen turning off, it runs at the priority the
+            // display power controller itself runs at and is bounded by its deadline
+            HandlerThread captureThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_DISPLAY);
+            captureThread.start();
+            mCaptureHandler = new Handler(captureThread.getLooper());
+            mDisplayManager = (DisplayManager) context.getSystemService(Context.DISPLAY_SERVICE);
+            mDisplayManager.registerDisplayListener(mDisplayListener, mCaptureHandler);
+            updateDisplaySize(KEYGUARD_DISPLAY);
+            mCapturePolicy.register(context, mCaptureHandler);
+            PerfMetrics.register(context, PerfMetrics.PROCESS_SYSTEM);
+        } catch (Exception e) {
+            ModLog.e(TAG, "ERROR (DPC constructor)", e);
+        }
+    }
+
+    // The controller state around a power request, only readable from the real hook
+    private static void logPowerRequest(XC_MethodHook.MethodHookParam param) {
+        boolean waitForNegativeProximity = (Boolean) param.args[1];
+        boolean pendingWaitForNegativeProximity = XposedHelpers.getBooleanField(
+                param.thisObject, "mPendingWaitForNegativeProximityLocked");
+        boolean displayReadyLocked = XposedHelpers.getBooleanField(param.thisObject,
+                "mDisplayReadyLocked");
+        boolean pendingRequestChangedLocked = XposedHelpers.getBooleanField(param.thisObject,
+                "mPendingRequestChangedLocked");
+        ModLog.d(TAG, "waitForNegativeProximity, pendingWaitForNegativeProximity",
+                waitForNegativeProximity ? 1 : 0, pendingWaitForNegativeProximity ? 1 : 0);
+        ModLog.d(TAG, "displayReadyLocked, pendingRequestChangedLocked",
+                displayReadyLocked ? 1 : 0, pendingRequestChangedLocked ? 1 : 0);
+    }
+
+    // Body of the requestPowerState hook, with the request, the controller's
+    // mPendingRequestLocked and the request's screenState
+    static void onRequestPowerState(Object request, Object pendingRequestLocked, int screenState) {
+        reloadPrefs();
+        Tracing.setEnabled(mPrefs.getBoolean(SettingsActivity.PREF_KEY_DIAGNOSTICS_TRACE, false));
+        ModLog.setLevel(Integer.parseInt(mPrefs.getString(
+                SettingsActivity.PREF_KEY_DIAGNOSTICS_LOG_LEVEL, SettingsActivity.LOG_LEVEL_DEFAULT)));
+        final String bgType = mPrefs.getString(
+                SettingsActivity.PREF_KEY_LOCKSCREEN_BACKGROUND,
+                SettingsActivity.LOCKSCREEN_BG_DEFAULT);
+        boolean seeThroughSelected = bgType.equals(SettingsActivity.LOCKSCREEN_BG_SEE_THROUGH);
+        if (mSeeThroughSelected && !seeThroughSelected) {
+            // The settings app can't reach the capture, drop it here so it
+            // isn't shown when see-through is selected again
+            BackgroundFile.clear(new File(mSeeThroughDir, BackgroundFile.SEE_THROUGH_IMAGE));
+        }
+        mSeeThroughSelected = seeThroughSelected;
+        if (!seeThroughSelected) return;
+
+        if (pendingRequestLocked == null || !pendingRequestLocked.equals(request)) {
+            ModLog.d(TAG, "Screen state", screenState);
+            // Any new power state makes a running capture obsolete
+            cancelCapture();
+            if (screenState == SCREEN_STATE_OFF && !mKeyguardManager.isKeyguardLocked()) {
+//                if ((displayReadyLocked || !pendingRequestChangedLocked) &&
+//                        (waitForNegativeProximity &&
+//                                !pendingWaitForNegativeProximity ||
+//                                pendingRequestLocked == null ||
+//                                !pendingRequestLocked.equals(request))) {
+                scheduleCapture();
+            }
+        }
+    }
+
+    private static void updateDisplaySize(int displayId) {
+        if (displayId != KEYGUARD_DISPLAY) return;
+        Display display = mDisplayManager.getDisplay(displayId);
+        if (display == null) return;
+
+        Point size = new Point();
+        display.getRealSize(size);
+        int rotation = display.getRotation();
+        if (rotation == Surface.ROTATION_90 || rotation == Surface.ROTATION_270) {
+            size.set(size.y, size.x);
+        }
+        ModLog.d(TAG, "Display natural size", displayId, size.x, size.y);
+        synchronized (mDisplaySize) {
+            mDisplaySize.set(size.x, size.y);
+        }
+    }
+
+    private static void scheduleCapture() {
+        if (mCaptureHandler == null) return;
+        PerfMetrics.count(PerfMetrics.COUNTER_CAPTURES_REQUESTED);
+        CaptureJob job = new CaptureJob(CAPTURE_BUDGET_MS);
+        mCaptureJob = job;
+        mCaptureHandler.post(job);
+    }
+
+    private static void cancelCapture() {
+        CaptureJob job = mCaptureJob;
+        if (job == null) return;
+        job.cancel();
+        mCaptureHandler.removeCallbacks(job);
+        mCaptureJob = null;
+    }
+
+    // SurfaceControl.screenshot() without a display token captures the built-in display,
+    // which is the one the keyguard is shown on
+    private static void captureSeeThroughImage(CaptureJob job) {
+        try {
+            int naturalWidth;
+            int naturalHeight;
+            synchronized (mDisplaySize) {
+                naturalWidth = mDisplaySize.x;
+                naturalHeight = mDisplaySize.y;
+            }
+            if (naturalWidth <= 0 || naturalHeight <= 0) {
+                ModLog.w(TAG, "No size known for the keyguard display");
+                return;
+            }
+            File seeThroughImage = new File(mSeeThroughDir, BackgroundFile.SEE_THROUGH_IMAGE);
+            BackgroundFile.Header current = BackgroundFile.readHeader(seeThroughImage);
+
+            // Low battery, power saving or a hot device lower the capture resolution
+            // and rate. Skipping is only allowed when there is a frame to fall back to.
+            int captureMode = mCapturePolicy.getCaptureMode();
+            if (captureMode == CapturePolicy.CAPTURE_SKIP && current != null) {
+                ModLog.i(TAG, "Capture skipped by power policy, keeping previous image");
+                PerfMetrics.count(PerfMetrics.COUNTER_CAPTURES_POLICY_SKIPPED);
+                return;
+            }
+            int captureWidth = naturalWidth;
+            int captureHeight = naturalHeight;
+            if (captureMode != CapturePolicy.CAPTURE_FULL) {
+                PerfMetrics.count(PerfMetrics.COUNTER_CAPTURES_REDUCED);
+                captureWidth /= CapturePolicy.REDUCED_SCALE;
+                captureHeight /= CapturePolicy.REDUCED_SCALE;
+            }
+
+            long screenshotStart = PerfMetrics.start();
+            Bitmap bmp = screenshot(captureWidth, captureHeight);
+            PerfMetrics.record(PerfMetrics.STAGE_SCREENSHOT, screenshotStart);
+            if (bmp != null) {
+                // Compare the capture with the one the persisted frame was encoded from.
+                // Turning the screen off repeatedly over the same app then skips the
+                // encode, the write and the keyguard side reprocessing. The size tells a
+                // full capture from a reduced one, so a reduced frame is replaced as soon
+                // as the policy allows full captures again.
+                long fingerprintStart = PerfMetrics.start();
+                long fingerprint = Utils.fingerprintBitmap(bmp);
+                PerfMetrics.record(PerfMetrics.STAGE_FINGERPRINT, fingerprintStart);
+                if (current != null && current.fingerprint == fingerprint
+                        && current.width == bmp.getWidth() && current.height == bmp.getHeight()) {
+                    ModLog.d(TAG, "Screen content unchanged, keeping previous image");
+                    PerfMetrics.count(PerfMetrics.COUNTER_CAPTURES_UNCHANGED);
+                    bmp.recycle();
+                    return;
+                }
+
+                // Encode in memory and publish atomically so the keyguard
+                // never sees a partially written image
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                boolean saveSuccess = false;
+                if (job.isAborted()) {
+                    ModLog.i(TAG, "Capture aborted after fingerprint");
+                    PerfMetrics.count(PerfMetrics.COUNTER_CAPTURES_ABORTED);
+                } else {
+                    long compressStart = PerfMetrics.start();
+                    saveSuccess = bmp.compress(Bitmap.CompressFormat.JPEG, 85, out);
+                    PerfMetrics.record(PerfMetrics.STAGE_COMPRESS, compressStart);
+                }
+                if (saveSuccess && job.isAborted()) {
+                    ModLog.i(TAG, "Capture aborted after encoding");
+                    PerfMetrics.count(PerfMetrics.COUNTER_CAPTURES_ABORTED);
+                    saveSuccess = false;
+                }
+                if (saveSuccess) {
+                    long writeStart = PerfMetrics.start();
+                    BackgroundFile.ensureDir(mSeeThroughDir);
+                    BackgroundFile.write(seeThroughImage, bmp.getWidth(), bmp.getHeight(), fingerprint,
+                            out.toByteArray(), out.size());
+                    PerfMetrics.record(PerfMetrics.STAGE_WRITE, writeStart);
+                    mCapturePolicy.onCaptured();
+                    PerfMetrics.count(PerfMetrics.COUNTER_CAPTURES_WRITTEN);
+                }
+                bmp.recycle();
+                ModLog.d(TAG, "Bitmap saved", saveSuccess ? 1 : 0);
+            }
+        } catch (Exception e) {
+            ModLog.e(TAG, "ERROR (requestPowerState)", e);
+        }
+    }
+
+    private static Bitmap screenshot(int width, int height) {
+        return mScreenSource.screenshot(width, height);
+    }
+
+    // Prepares the hook bodies to be driven by HookReplay instead of system_server
+    static void setUpReplay(SharedPreferences prefs, int screenStateOff, ScreenSource screenSource,
+            File seeThroughDir) {
+        mPrefs = prefs;
+        mReloadPrefs = false;
+        mSeeThroughDir = seeThroughDir;
+        SCREEN_STATE_OFF = screenStateOff;
+        mScreenSource = screenSource;
+    }
+
+    private static void reloadPrefs() {
+        if (mReloadPrefs) ((XSharedPreferences) mPrefs).reload();
+    }
+
+    // Waits until the captures scheduled so far have run
+    static boolean awaitCaptures(long timeoutMs) throws InterruptedException {
+        if (mCaptureHandler == null) return true;
+        final CountDownLatch latch = new CountDownLatch(1);
+        mCaptureHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        return latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
 }
@@ -16,102 +16,90 @@
 
 package jh.xposed.lockscreenwallpaper;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Matrix;
-import android.graphics.drawable.ColorDrawable;
-import android.graphics.drawable.Drawable;
 import android.os.Bundle;
-import android.view.Surface;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.view.Display;
+import android.view.View;
 import android.view.WindowManager;
 import de.robv.android.xposed.XC_MethodHook;
 import de.robv.android.xposed.XSharedPreferences;
 import de.robv.android.xposed.XposedBridge;
 import de.robv.android.xposed.XposedHelpers;
 
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeoutException;
+
 public class ModLockscreen {
     public static final String PACKAGE_NAME = "com.android.keyguard";
 
     private static final String TAG = "ModLockscreen";
     private static final String CLASS_KGVIEW_MANAGER = "com.android.keyguard.KeyguardViewManager";
-    private static final boolean DEBUG = false;
+    private static final String CLASS_KG_UPDATE_MONITOR = "com.android.keyguard.KeyguardUpdateMonitor";
 
-    private static XSharedPreferences mPrefs;
+    private static SharedPreferences mPrefs;
+    // XSharedPreferences have to be reloaded to see changes made in the settings app,
+    // the app's own preferences a replay passes in are always current
+    private static boolean mReloadPrefs;
     private static Context mContext;
+    // KeyguardUpdateMonitor.getInstance(Context) and dispatchSetBackground(Bitmap)
+    private static Method mGetUpdateMonitor;
+    private static Method mDispatchSetBackground;
+    private static File mSeeThroughDir = BackgroundFile.seeThroughDir();
+    // Share of the process' memory class the background cache may hold
+    private static final int CACHE_MEMORY_FRACTION = 8;
 
-    private static void log(String message) {
-        XposedBridge.log(TAG + ": " + message);
-    }
+    private static final BackgroundCache mCache = new BackgroundCache();
+    private static final BackgroundBuilder mBuilder = new BackgroundBuilder(mCache);
+    // Previews have their own cache and thread, so they don't wait for the full build
+    // they stand in for and don't push its stages out of the cache
+    private static final BackgroundCache mPreviewCache = new BackgroundCache();
+    private static final BackgroundBuilder mPreviewBuilder = new BackgroundBuilder(mPreviewCache);
+    private static Handler mWorkerHandler;
+    private static Handler mPreviewHandler;
+    private static Handler mMainHandler;
+    // Bumped on every lock, so a late background doesn't replace a newer one, and
+    // whether that lock's keyguard is still up. Only used on the main thread.
+    private static int mLockSequence;
+    private static boolean mKeyguardShowing;
+    // The last lock that got its full background, so a late preview doesn't replace it
+    private static int mFullSequence;
+    // The last background shown and its average color, for when a build misses its deadline
+    private static WeakReference<Bitmap> mLastBackground;
+    private static int mDominantColor;
+    // Keyguard host waiting for its first layout, and the listener that will dispatch then
+    private static View mPendingHost;
+    private static View.OnLayoutChangeListener mPendingDispatch;
 
     public static void init(final XSharedPreferences prefs, final ClassLoader classLoader) {
         try {
             mPrefs = prefs;
+            mReloadPrefs = true;
+            Tracing.init(Tracing.TAG_VIEW);
             final Class<?> kgViewManagerClass = XposedHelpers.findClass(CLASS_KGVIEW_MANAGER, classLoader);
+            setUpdateMonitorClass(XposedHelpers.findClass(CLASS_KG_UPDATE_MONITOR, classLoader));
+            HandlerThread workerThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            workerThread.start();
+            mWorkerHandler = new Handler(workerThread.getLooper());
+            HandlerThread previewThread = new HandlerThread(TAG + "Preview", Process.THREAD_PRIORITY_BACKGROUND);
+            previewThread.start();
+            mPreviewHandler = new Handler(previewThread.getLooper());
+            mMainHandler = new Handler(Looper.getMainLooper());
             final XC_MethodHook methodHook = new XC_MethodHook() {
                 @Override
                 protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
-                    mPrefs.reload();
-                    final String bgType = mPrefs.getString(
-                            SettingsActivity.PREF_KEY_LOCKSCREEN_BACKGROUND,
-                            SettingsActivity.LOCKSCREEN_BG_DEFAULT);
-
-                    Context context = (Context) XposedHelpers.getObjectField(param.thisObject, "mContext");
-                    if (context != null && mContext == null) {
-                        mContext = context.createPackageContext(XposedLockscreenWallpaper.PACKAGE_NAME, 0);
-                    }
-
-                    if (!bgType.equals(SettingsActivity.LOCKSCREEN_BG_DEFAULT)) {
-                        Bitmap background;
-                        if (bgType.equals(SettingsActivity.LOCKSCREEN_BG_COLOR)) {
-                            final int color = mPrefs.getInt(
-                                    SettingsActivity.PREF_KEY_LOCKSCREEN_BACKGROUND_COLOR, Color.BLACK);
-                            Drawable d = new ColorDrawable(color);
-                            int w = d.getIntrinsicWidth() > 0 ? d.getIntrinsicWidth() : 1;
-                            int h = d.getIntrinsicHeight() > 0 ? d.getIntrinsicHeight() : 1;
-                            background = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-                            Canvas canvas = new Canvas(background);
-                            d.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
-                            d.draw(canvas);
-                        } else {
-                            String wallpaperFile = "";
-                            if (bgType.equals(SettingsActivity.LOCKSCREEN_BG_IMAGE)) {
-                                wallpaperFile = mContext.getFilesDir() + "/lockwallpaper";
-                            } else if (bgType.equals(SettingsActivity.LOCKSCREEN_BG_SEE_THROUGH)) {
-                                wallpaperFile = mContext.getFilesDir() + "/seethroughimage";
-                            }
-
-                            background = BitmapFactory.decodeFile(wallpaperFile);
-                            if (DEBUG) log("Wallpaper file null: " + (background == null));
-                            if (background != null) {
-                                int blurAmount = mPrefs.getInt(
-                                        SettingsActivity.PREF_KEY_LOCKSCREEN_BLUR_AMOUNT, 100) / 4;
-                                blurAmount = blurAmount == 0 ? 1 : blurAmount;
-                                background = Utils.blurBitmap(background, blurAmount, mContext);
-                                if (bgType.equals(SettingsActivity.LOCKSCREEN_BG_SEE_THROUGH)) {
-                                    final String tint = mPrefs.getString(
-                                            SettingsActivity.PREF_KEY_LOCKSCREEN_BACKGROUND_SEE_THROUGH_TINT,
-                                            SettingsActivity.LOCKSCREEN_BG_SEE_THROUGH_TINT_DARK);
-                                    Bitmap bitmapOverlay = Bitmap.createBitmap(
-                                            background.getWidth(), background.getHeight(), background.getConfig());
-                                    Canvas canvas = new Canvas(bitmapOverlay);
-                                    canvas.drawBitmap(background, new Matrix(), null);
-                                    if (tint.equals(SettingsActivity.LOCKSCREEN_BG_SEE_THROUGH_TINT_DARK)) {
-                                        canvas.drawARGB(127, 0, 0, 0);
-                                    } else if (tint.equals(SettingsActivity.LOCKSCREEN_BG_SEE_THROUGH_TINT_LIGHT)) {
-                                        canvas.drawARGB(127, 255, 255, 255);
-                                    }
-                                    background = bitmapOverlay;
-                                }
-                            }
-                        }
-                        Object mKeyguardHost = XposedHelpers.getObjectField(param.thisObject, "mKeyguardHost");
-                        if (background != null && isKeyguardHostDimensionNonZero(mKeyguardHost)) {
-                            setLockscreenBitmap(background, context);
-                        }
-                    }
+                    onKeyguardCreated((Context) XposedHelpers.getObjectField(param.thisObject, "mContext"),
+                            XposedHelpers.getObjectField(param.thisObject, "mKeyguardHost"));
                 }
             };
 
@@ -133,46 +121,341 @@ public class ModLockscreen {
                 XposedBridge.log(nsme.getLocalizedMessage());
             }
 
+            try {
+                XposedHelpers.findAndHookMethod(kgViewManagerClass, "hide", new XC_MethodHook() {
+                    @Override
+                    protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
+                        onKeyguardHidden();
+                    }
+                });
+            } catch (NoSuchMethodError nsme) {
+                XposedBridge.log("Can't find method to hook - hide");
+                XposedBridge.log(nsme.getLocalizedMessage());
+            }
+
+            // The view manager is created at boot, well before the first lock
+            XposedBridge.hookAllConstructors(kgViewManagerClass, new XC_MethodHook() {
+                @Override
+                protected void afterHookedMethod(final MethodHookParam param) throws Throwable {
+                    onKeyguardViewManagerCreated(
+                            (Context) XposedHelpers.getObjectField(param.thisObject, "mContext"));
+                }
+            });
+
         } catch (Throwable t) {
             XposedBridge.log(t);
         }
     }
 
-    private static void setLockscreenBitmap(Bitmap bmp, Context context) {
-        WindowManager windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
-        final int rotation = windowManager.getDefaultDisplay().getRotation();
-        if (DEBUG) log("Rotation: " + rotation);
-        if (rotation != Surface.ROTATION_0) {
-            int toRotate = 0;
-            switch(rotation) {
-                case Surface.ROTATION_90:
-                    toRotate = -90;
-                    break;
-                case Surface.ROTATION_180:
-                    toRotate = -180;
-                    break;
-                case Surface.ROTATION_270:
-                    toRotate = 90;
-                    break;
+    // Body of the maybeCreateKeyguardLocked hook, with the view manager's
+    // mContext and mKeyguardHost
+    static void onKeyguardCreated(Context context, Object keyguardHost) throws Throwable {
+        reloadPrefs();
+        Tracing.setEnabled(mPrefs.getBoolean(SettingsActivity.PREF_KEY_DIAGNOSTICS_TRACE, false));
+        ModLog.setLevel(Integer.parseInt(mPrefs.getString(
+                SettingsActivity.PREF_KEY_DIAGNOSTICS_LOG_LEVEL, SettingsActivity.LOG_LEVEL_DEFAULT)));
+        boolean traced = Tracing.begin(Tracing.SECTION_KEYGUARD_HOOK);
+        try {
+            updateLockscreenBackground(context, keyguardHost);
+        } finally {
+            Tracing.end(traced);
+        }
+    }
+
+    // Body of the KeyguardViewManager.hide() hook: a background that is still on its way
+    // or waiting for a layout must not end up on a dismissed keyguard
+    static void onKeyguardHidden() {
+        mKeyguardShowing = false;
+        cancelPendingDispatch();
+    }
+
+    // Body of the KeyguardViewManager constructor hook: builds the background into the
+    // cache and brings up the blur engine on the worker thread, so the first lock finds
+    // both ready. A lock that comes first joins the prewarm build instead of redoing it.
+    static void onKeyguardViewManagerCreated(final Context context) {
+        if (context == null) return;
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    prewarm(context);
+                } catch (Throwable t) {
+                    XposedBridge.log(t);
+                }
+            }
+        });
+    }
+
+    private static void prewarm(Context context) throws Throwable {
+        final long start = PerfMetrics.start();
+        reloadPrefs();
+        Context moduleContext = getModuleContext(context);
+        BackgroundPipeline pipeline = createPipeline(context, moduleContext);
+        if (pipeline == null) return;
+
+        Utils.prepareBlur(moduleContext);
+        Bitmap background = mBuilder.build(pipeline, moduleContext);
+        PerfMetrics.count(PerfMetrics.COUNTER_PREWARMS);
+        PerfMetrics.record(PerfMetrics.STAGE_PREWARM, start);
+        ModLog.d(TAG, "Background prewarmed", background != null ? 1 : 0);
+    }
+
+    // Prepares the hook body to be driven by HookReplay instead of the keyguard
+    static void setUpReplay(SharedPreferences prefs, Class<?> updateMonitorClass, File seeThroughDir)
+            throws NoSuchMethodException {
+        mPrefs = prefs;
+        mReloadPrefs = false;
+        setUpdateMonitorClass(updateMonitorClass);
+        mSeeThroughDir = seeThroughDir;
+    }
+
+    private static void setUpdateMonitorClass(Class<?> updateMonitorClass) throws NoSuchMethodException {
+        mGetUpdateMonitor = updateMonitorClass.getDeclaredMethod("getInstance", Context.class);
+        mGetUpdateMonitor.setAccessible(true);
+        mDispatchSetBackground = updateMonitorClass.getDeclaredMethod("dispatchSetBackground", Bitmap.class);
+        mDispatchSetBackground.setAccessible(true);
+    }
+
+    private static void reloadPrefs() {
+        if (mReloadPrefs) ((XSharedPreferences) mPrefs).reload();
+    }
+
+    private static void updateLockscreenBackground(Context context, Object keyguardHost) throws Throwable {
+        final long lockStart = PerfMetrics.start();
+        Context moduleContext = getModuleContext(context);
+        BackgroundPipeline pipeline = createPipeline(context, moduleContext);
+        if (pipeline == null) return;
+
+        BitmapAccounting.setBudget(Long.parseLong(mPrefs.getString(
+                SettingsActivity.PREF_KEY_DIAGNOSTICS_BITMAP_BUDGET, "32")) * 1024 * 1024);
+        BitmapAccounting.beginLock();
+        PerfMetrics.count(PerfMetrics.COUNTER_LOCKS);
+        mLockSequence++;
+        mKeyguardShowing = true;
+
+        boolean built = renderBackground(pipeline, moduleContext, context, keyguardHost);
+        PerfMetrics.record(PerfMetrics.STAGE_LOCK, lockStart);
+        // A build that misses the deadline ends the lock's accounting once it is done,
+        // so the bitmaps it allocates on the worker count for this lock
+        if (built) endBitmapAccounting();
+    }
+
+    private static void endBitmapAccounting() {
+        long overBudget = BitmapAccounting.endLock();
+        if (overBudget > 0) {
+            ModLog.w(TAG, "Bitmap memory budget exceeded, peak kB", overBudget / 1024);
+        }
+    }
+
+    // Waits for the background no longer than the render deadline and shows it. A build
+    // that takes longer carries on in the worker and its result replaces the fallback
+    // shown meanwhile, unless the keyguard has gone or the device has locked again since.
+    // Returns whether the build is done.
+    private static boolean renderBackground(BackgroundPipeline pipeline, Context moduleContext,
+            final Context context, final Object keyguardHost) {
+        long deadline = Long.parseLong(mPrefs.getString(
+                SettingsActivity.PREF_KEY_LOCKSCREEN_RENDER_DEADLINE,
+                SettingsActivity.RENDER_DEADLINE_DEFAULT));
+        // HookReplay has no worker, it measures the full build
+        if (deadline <= 0 || mWorkerHandler == null) {
+            Bitmap background = rememberBackground(mBuilder.build(pipeline, moduleContext));
+            ModLog.d(TAG, "Background created", background != null ? 1 : 0);
+            showBackground(keyguardHost, background, context);
+            return true;
+        }
+
+        final int lockSequence = mLockSequence;
+        try {
+            Bitmap background = rememberBackground(mBuilder.build(pipeline, moduleContext, mWorkerHandler,
+                    deadline, new BackgroundBuilder.Callback() {
+                        @Override
+                        public void onBuilt(final Bitmap background) {
+                            mMainHandler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    // A newer lock has started its own accounting
+                                    if (lockSequence != mLockSequence) return;
+                                    endBitmapAccounting();
+                                    if (!mKeyguardShowing) return;
+                                    if (background == null || background.isRecycled()) return;
+                                    mFullSequence = lockSequence;
+                                    showBackground(keyguardHost, rememberBackground(background), context);
+                                    PerfMetrics.count(PerfMetrics.COUNTER_LATE_DISPATCHES);
+                                }
+                            });
+                        }
+                    }));
+            ModLog.d(TAG, "Background created", background != null ? 1 : 0);
+            mFullSequence = lockSequence;
+            showBackground(keyguardHost, background, context);
+            return true;
+        } catch (TimeoutException e) {
+            PerfMetrics.count(PerfMetrics.COUNTER_DEADLINE_MISSES);
+            ModLog.w(TAG, "Background missed its deadline, ms", deadline);
+            showBackground(keyguardHost, renderFallback(moduleContext), context);
+            schedulePreview(pipeline, moduleContext, context, keyguardHost);
+            return false;
+        }
+    }
+
+    // Shown right away when the build misses its deadline, without any pixel work: the
+    // last background, or its average color. The fallback is not remembered, the full
+    // background is on its way.
+    private static Bitmap renderFallback(Context moduleContext) {
+        Bitmap last = mLastBackground != null ? mLastBackground.get() : null;
+        if (last != null && !last.isRecycled()) {
+            PerfMetrics.count(PerfMetrics.COUNTER_FALLBACK_PREVIOUS);
+            return last;
+        }
+
+        if (mDominantColor == 0) return null;
+        PerfMetrics.count(PerfMetrics.COUNTER_FALLBACK_COLORS);
+        return new BackgroundSources.SolidColor(mDominantColor).load(moduleContext);
+    }
+
+    // Builds the low resolution preview on its own thread. It replaces the fallback if it
+    // is ready before the full background, and the keyguard is still up.
+    private static void schedulePreview(BackgroundPipeline pipeline, final Context moduleContext,
+            final Context context, final Object keyguardHost) {
+        final BackgroundPipeline preview = pipeline.getPreview();
+        if (preview == null) return;
+
+        final int lockSequence = mLockSequence;
+        mPreviewHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bmp;
+                try {
+                    bmp = mPreviewBuilder.build(preview, moduleContext);
+                } catch (Throwable t) {
+                    ModLog.w(TAG, "Background preview failed", t);
+                    return;
+                }
+                if (bmp == null) return;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (lockSequence != mLockSequence || !mKeyguardShowing) return;
+                        if (mFullSequence == lockSequence || bmp.isRecycled()) return;
+                        showBackground(keyguardHost, bmp, context);
+                        PerfMetrics.count(PerfMetrics.COUNTER_FALLBACK_PREVIEWS);
+                    }
+                });
             }
-            Matrix matrix = new Matrix();
-            matrix.postRotate(toRotate);
-            bmp = Bitmap.createBitmap(bmp, 0, 0, bmp.getWidth(), bmp.getHeight(), matrix, true);
+        });
+    }
+
+    // Only looks at a background once, a lock that reuses it allocates nothing
+    private static Bitmap rememberBackground(Bitmap bmp) {
+        if (bmp == null || bmp.isRecycled()) return bmp;
+        if (mLastBackground == null || mLastBackground.get() != bmp) {
+            mLastBackground = new WeakReference<Bitmap>(bmp);
+            mDominantColor = Utils.dominantColor(bmp);
         }
-        final Class<?> keyguardUpdateMonitorClass = XposedHelpers.findClass("com.android.keyguard.KeyguardUpdateMonitor",
-                context.getClassLoader());
-        Object keyguardUpdateMonitor = XposedHelpers.callStaticMethod(keyguardUpdateMonitorClass, "getInstance", context);
-        XposedHelpers.callMethod(keyguardUpdateMonitor, "dispatchSetBackground", bmp);
+        return bmp;
+    }
+
+    private static void showBackground(Object keyguardHost, Bitmap background, Context context) {
+        if (background == null) return;
+        if (isKeyguardHostDimensionNonZero(keyguardHost)) {
+            cancelPendingDispatch();
+            setLockscreenBitmap(background, context);
+        } else if (keyguardHost instanceof View) {
+            dispatchWhenLaidOut((View) keyguardHost, background, context);
+        }
+    }
+
+    // The module's own context, for its files. The first caller registers for diagnostics.
+    private static synchronized Context getModuleContext(Context context) throws Throwable {
+        if (mContext == null) {
+            mContext = context.createPackageContext(XposedLockscreenWallpaper.PACKAGE_NAME, 0);
+            PerfMetrics.register(context, PerfMetrics.PROCESS_KEYGUARD);
+            registerMemoryCallbacks(context);
+        }
+        return mContext;
+    }
+
+    // The keyguard lives as long as the device is up, so the cache must give memory back
+    // before the keyguard process becomes a target for the low memory killer
+    private static void registerMemoryCallbacks(Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mCache.setByteBudget(activityManager.getMemoryClass() * 1024L * 1024 / CACHE_MEMORY_FRACTION);
+
+        Context appContext = context.getApplicationContext();
+        (appContext != null ? appContext : context).registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                mBuilder.trimMemory(level);
+                mPreviewBuilder.trimMemory(level);
+            }
+
+            @Override
+            public void onLowMemory() {
+                mBuilder.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+                mPreviewBuilder.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+        });
+    }
+
+    private static BackgroundPipeline createPipeline(Context context, Context moduleContext) {
+        WindowManager windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        Display display = windowManager.getDefaultDisplay();
+        return BackgroundPipeline.create(mPrefs, moduleContext.getFilesDir(), mSeeThroughDir,
+                display.getRotation());
+    }
+
+    private static void setLockscreenBitmap(Bitmap bmp, Context context) {
+        boolean traced = Tracing.begin(Tracing.SECTION_SET_BITMAP);
+        try {
+            long dispatchStart = PerfMetrics.start();
+            Object keyguardUpdateMonitor = mGetUpdateMonitor.invoke(null, context);
+            mDispatchSetBackground.invoke(keyguardUpdateMonitor, bmp);
+            PerfMetrics.record(PerfMetrics.STAGE_DISPATCH, dispatchStart);
+        } catch (Exception e) {
+            ModLog.e(TAG, "Background dispatch failed", e);
+        } finally {
+            Tracing.end(traced);
+        }
+    }
+
+    // Rather than dropping a background that is ready, it is kept until the host has been
+    // laid out with a size. Only the latest background waits, and the cache owns it.
+    private static void dispatchWhenLaidOut(View host, final Bitmap bmp, final Context context) {
+        cancelPendingDispatch();
+        mPendingHost = host;
+        mPendingDispatch = new View.OnLayoutChangeListener() {
+            @Override
+            public void onLayoutChange(View v, int left, int top, int right, int bottom,
+                    int oldLeft, int oldTop, int oldRight, int oldBottom) {
+                if (right <= left || bottom <= top) return;
+                cancelPendingDispatch();
+                if (bmp.isRecycled()) return;
+                setLockscreenBitmap(bmp, context);
+                PerfMetrics.count(PerfMetrics.COUNTER_DISPATCHES_DEFERRED);
+            }
+        };
+        host.addOnLayoutChangeListener(mPendingDispatch);
+        ModLog.d(TAG, "Dispatch deferred until the keyguard host is laid out");
+    }
+
+    private static void cancelPendingDispatch() {
+        if (mPendingHost == null) return;
+        mPendingHost.removeOnLayoutChangeListener(mPendingDispatch);
+        mPendingHost = null;
+        mPendingDispatch = null;
     }
 
     // This is a hack around CM based ROMs
     // where the ViewManagerHost has a zero width or height at boot
     private static boolean isKeyguardHostDimensionNonZero(Object keyguardHost) {
-        if (keyguardHost == null) return false;
+        if (!(keyguardHost instanceof View)) return false;
 
-        int width = (Integer) XposedHelpers.callMethod(keyguardHost, "getWidth");
-        int height = (Integer) XposedHelpers.callMethod(keyguardHost, "getHeight");
-        return width > 0 && height > 0;
+        View host = (View) keyguardHost;
+        return host.getWidth() > 0 && host.getHeight() > 0;
     }
 
 }
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper;
+
+import de.robv.android.xposed.XposedBridge;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Logger for the hooks, switched at runtime from the settings app.
+ *
+ * Events are a constant tag, a constant message and up to three numeric arguments
+ * or a throwable, stored in a preallocated ring buffer. Nothing is formatted until
+ * the buffer is dumped, and below the current level a call is a single comparison, so
+ * debug calls can stay in hooks that run on every power request. Warnings and errors
+ * at or above the current level are also passed to a {@link Sink} right away, the
+ * Xposed log unless replaced.
+ */
+public class ModLog {
+
+    public static final int DEBUG = 1;
+    public static final int INFO = 2;
+    public static final int WARN = 3;
+    public static final int ERROR = 4;
+    public static final int OFF = 5;
+
+    private static final int CAPACITY = 256;
+    private static final String LEVELS = "?DIWE";
+
+    private static class Record {
+        long time;
+        int level;
+        String tag;
+        String message;
+        int argCount;
+        long arg0;
+        long arg1;
+        long arg2;
+        Throwable error;
+    }
+
+    private static final Record[] sRecords = new Record[CAPACITY];
+    private static int sNext;
+    private static int sSize;
+    private static volatile int sLevel = INFO;
+
+    // Receives warnings and errors as they are logged
+    public interface Sink {
+        void log(int level, String tag, String message);
+    }
+
+    // XposedBridge is only resolved once something is logged, so a process without the
+    // Xposed framework can use ModLog after setting a sink of its own
+    private static final Sink XPOSED_LOG = new Sink() {
+        @Override
+        public void log(int level, String tag, String message) {
+            XposedBridge.log(tag + ": " + message);
+        }
+    };
+
+    private static volatile Sink sSink = XPOSED_LOG;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sRecords[i] = new Record();
+        }
+    }
+
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    public static void setSink(Sink sink) {
+        sSink = sink;
+    }
+
+    public static boolean isLoggable(int level) {
+        return level >= sLevel;
+    }
+
+    public static void d(String tag, String message) {
+        if (DEBUG >= sLevel) record(DEBUG, tag, message, 0, 0, 0, 0);
+    }
+
+    public static void d(String tag, String message, long arg0) {
+        if (DEBUG >= sLevel) record(DEBUG, tag, message, 1, arg0, 0, 0);
+    }
+
+    public static void d(String tag, String message, long arg0, long arg1) {
+        if (DEBUG >= sLevel) record(DEBUG, tag, message, 2, arg0, arg1, 0);
+    }
+
+    public static void d(String tag, String message, long arg0, long arg1, long arg2) {
+        if (DEBUG >= sLevel) record(DEBUG, tag, message, 3, arg0, arg1, arg2);
+    }
+
+    public static void i(String tag, String message) {
+        if (INFO >= sLevel) record(INFO, tag, message, 0, 0, 0, 0);
+    }
+
+    public static void i(String tag, String message, long arg0) {
+        if (INFO >= sLevel) record(INFO, tag, message, 1, arg0, 0, 0);
+    }
+
+    public static void w(String tag, String message) {
+        if (WARN < sLevel) return;
+        sSink.log(WARN, tag, message);
+        record(WARN, tag, message, 0, 0, 0, 0);
+    }
+
+    public static void w(String tag, String message, long arg0) {
+        if (WARN < sLevel) return;
+        sSink.log(WARN, tag, message + " " + arg0);
+        record(WARN, tag, message, 1, arg0, 0, 0);
+    }
+
+    public static void w(String tag, String message, Throwable error) {
+        if (WARN < sLevel) return;
+        sSink.log(WARN, tag, message + ": " + error);
+        record(WARN, tag, message, error);
+    }
+
+    public static void e(String tag, String message) {
+        if (ERROR < sLevel) return;
+        sSink.log(ERROR, tag, message);
+        record(ERROR, tag, message, 0, 0, 0, 0);
+    }
+
+    public static void e(String tag, String message, Throwable error) {
+        if (ERROR < sLevel) return;
+        sSink.log(ERROR, tag, message + ": " + error);
+        record(ERROR, tag, message, error);
+    }
+
+    private static void record(int level, String tag, String message, Throwable error) {
+        synchronized (sRecords) {
+            record(level, tag, message, 0, 0, 0, 0);
+            sRecords[(sNext - 1 + CAPACITY) % CAPACITY].error = error;
+        }
+    }
+
+    private static void record(int level, String tag, String message, int argCount,
+            long arg0, long arg1, long arg2) {
+        synchronized (sRecords) {
+            Record r = sRecords[sNext];
+            r.time = System.currentTimeMillis();
+            r.level = level;
+            r.tag = tag;
+            r.message = message;
+            r.argCount = argCount;
+            r.arg0 = arg0;
+            r.arg1 = arg1;
+            r.arg2 = arg2;
+            r.error = null;
+            sNext = (sNext + 1) % CAPACITY;
+            sSize = Math.min(sSize + 1, CAPACITY);
+        }
+    }
+
+    // Oldest event first, one per line
+    public static String dump() {
+        SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+        Date date = new Date();
+        StringBuilder sb = new StringBuilder();
+        synchronized (sRecords) {
+            for (int i = 0; i < sSize; i++) {
+                Record r = sRecords[(sNext - sSize + i + CAPACITY) % CAPACITY];
+                date.setTime(r.time);
+                sb.append(timeFormat.format(date)).append(' ')
+                        .append(LEVELS.charAt(r.level)).append('/')
+                        .append(r.tag).append(": ").append(r.message);
+                if (r.argCount > 0) sb.append(' ').append(r.arg0);
+                if (r.argCount > 1) sb.append(' ').append(r.arg1);
+                if (r.argCount > 2) sb.append(' ').append(r.arg2);
+                if (r.error != null) sb.append(": ").append(r.error);
+                sb.append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
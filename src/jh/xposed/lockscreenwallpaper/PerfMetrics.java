@@ -0,0 +1,193 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Bundle;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Per-stage latency recorder for the keyguard and capture pipelines.
+ *
+ * Every stage keeps the most recent samples in a fixed size ring buffer, so recording
+ * is a clock read and an array store. Percentiles are only computed when a snapshot
+ * is requested. The settings app collects snapshots from the hooked processes with an
+ * ordered broadcast, see {@link #register(Context, String)}.
+ */
+public class PerfMetrics {
+
+    public static final String ACTION_COLLECT = XposedLockscreenWallpaper.PACKAGE_NAME + ".COLLECT_METRICS";
+    // Held by both ends of ACTION_COLLECT: the snapshots carry the event log
+    public static final String PERMISSION_COLLECT = "android.permission.DUMP";
+    public static final String PROCESS_KEYGUARD = "keyguard";
+    public static final String PROCESS_SYSTEM = "system_server";
+    public static final String EXTRA_BITMAPS_SUFFIX = ".bitmaps";
+    public static final String EXTRA_LOG_SUFFIX = ".log";
+    public static final String EXTRA_COUNTERS_SUFFIX = ".counters";
+
+    // Keyguard side
+    public static final int STAGE_LOCK = 0;
+    public static final int STAGE_DECODE = 1;
+    public static final int STAGE_SCALE = 2;
+    public static final int STAGE_BLUR = 3;
+    public static final int STAGE_TINT = 4;
+    public static final int STAGE_ROTATE = 5;
+    public static final int STAGE_DISPATCH = 6;
+    // system_server side
+    public static final int STAGE_CAPTURE = 7;
+    public static final int STAGE_FINGERPRINT = 8;
+    public static final int STAGE_SCREENSHOT = 9;
+    public static final int STAGE_COMPRESS = 10;
+    public static final int STAGE_WRITE = 11;
+    // Keyguard side, off the lock path
+    public static final int STAGE_PREWARM = 12;
+
+    static final String[] STAGE_NAMES = {
+            "lock", "decode", "scale", "blur", "tint", "rotate", "dispatch",
+            "capture", "fingerprint", "screenshot", "compress", "write",
+            "prewarm"
+    };
+
+    // Event counters
+    public static final int COUNTER_LOCKS = 0;
+    public static final int COUNTER_CACHE_HITS = 1;
+    public static final int COUNTER_CACHE_MISSES = 2;
+    public static final int COUNTER_CAPTURES_REQUESTED = 3;
+    public static final int COUNTER_CAPTURES_WRITTEN = 4;
+    public static final int COUNTER_CAPTURES_UNCHANGED = 5;
+    public static final int COUNTER_CAPTURES_REDUCED = 6;
+    public static final int COUNTER_CAPTURES_POLICY_SKIPPED = 7;
+    public static final int COUNTER_CAPTURES_ABORTED = 8;
+    public static final int COUNTER_CACHE_PARTIAL_HITS = 9;
+    public static final int COUNTER_BUILDS_JOINED = 10;
+    public static final int COUNTER_PREWARMS = 11;
+    public static final int COUNTER_DISPATCHES_DEFERRED = 12;
+    public static final int COUNTER_CACHE_TRIMS = 13;
+    public static final int COUNTER_DEADLINE_MISSES = 14;
+    public static final int COUNTER_FALLBACK_PREVIEWS = 15;
+    public static final int COUNTER_FALLBACK_PREVIOUS = 16;
+    public static final int COUNTER_FALLBACK_COLORS = 17;
+    public static final int COUNTER_LATE_DISPATCHES = 18;
+
+    static final String[] COUNTER_NAMES = {
+            "locks", "cache_hits", "cache_misses",
+            "captures_requested", "captures_written", "captures_unchanged",
+            "captures_reduced", "captures_policy_skipped", "captures_aborted",
+            "cache_partial_hits", "builds_joined", "prewarms", "dispatches_deferred",
+            "cache_trims", "deadline_misses", "fallback_previews", "fallback_previous",
+            "fallback_colors", "late_dispatches"
+    };
+
+    private static final int SAMPLES = 64;
+
+    private static final long[][] sSamples = new long[STAGE_NAMES.length][SAMPLES];
+    private static final int[] sCounts = new int[STAGE_NAMES.length];
+    private static final int[] sCounters = new int[COUNTER_NAMES.length];
+
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    // Returns the recorded duration in nanoseconds
+    public static long record(int stage, long startNanos) {
+        final long elapsed = System.nanoTime() - startNanos;
+        synchronized (sSamples) {
+            sSamples[stage][sCounts[stage] % SAMPLES] = elapsed;
+            sCounts[stage]++;
+        }
+        return elapsed;
+    }
+
+    public static void count(int counter) {
+        synchronized (sCounters) {
+            sCounters[counter]++;
+        }
+    }
+
+    // One "counter,value" line per counter that has been incremented
+    public static String counterSnapshot() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (sCounters) {
+            for (int counter = 0; counter < COUNTER_NAMES.length; counter++) {
+                if (sCounters[counter] == 0) continue;
+                sb.append(COUNTER_NAMES[counter]).append(',').append(sCounters[counter]).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    // One "stage,count,p50_us,p95_us,max_us" line per stage that has samples
+    public static String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        long[] sorted = new long[SAMPLES];
+        synchronized (sSamples) {
+            for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+                int count = sCounts[stage];
+                if (count == 0) continue;
+
+                int n = Math.min(count, SAMPLES);
+                System.arraycopy(sSamples[stage], 0, sorted, 0, n);
+                Arrays.sort(sorted, 0, n);
+                sb.append(STAGE_NAMES[stage]).append(',')
+                        .append(count).append(',')
+                        .append(sorted[(n - 1) / 2] / 1000).append(',')
+                        .append(sorted[(n - 1) * 95 / 100] / 1000).append(',')
+                        .append(sorted[n - 1] / 1000).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    // Human readable form of a snapshot, for the settings app
+    public static String format(String snapshot) {
+        if (snapshot == null) return null;
+        StringBuilder sb = new StringBuilder();
+        for (String line : snapshot.split("\n")) {
+            String[] fields = line.split(",");
+            if (fields.length != 5) continue;
+            sb.append(fields[0]).append(" (").append(fields[1]).append("): ")
+                    .append(formatMicros(fields[2])).append(" / ")
+                    .append(formatMicros(fields[3])).append(" / ")
+                    .append(formatMicros(fields[4])).append(" ms\n");
+        }
+        return sb.toString();
+    }
+
+    private static String formatMicros(String micros) {
+        return String.format(Locale.US, "%.1f", Long.parseLong(micros) / 1000f);
+    }
+
+    // Answers ACTION_COLLECT by adding this process' snapshots to the result extras.
+    // Only senders holding PERMISSION_COLLECT are answered.
+    public static void register(Context context, final String process) {
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Bundle extras = getResultExtras(true);
+                extras.putString(process, snapshot());
+                extras.putString(process + EXTRA_BITMAPS_SUFFIX, BitmapAccounting.snapshot());
+                extras.putString(process + EXTRA_COUNTERS_SUFFIX, counterSnapshot());
+                extras.putString(process + EXTRA_LOG_SUFFIX, ModLog.dump());
+            }
+        }, new IntentFilter(ACTION_COLLECT), PERMISSION_COLLECT, null);
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.os.Debug;
+import android.util.Log;
+import jh.xposed.lockscreenwallpaper.core.BenchmarkRunner;
+import jh.xposed.lockscreenwallpaper.core.BoxBlur;
+import jh.xposed.lockscreenwallpaper.core.PixelBuffer;
+import jh.xposed.lockscreenwallpaper.core.SyntheticImage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Checks the lockscreen pipeline against the budgets in res/values/integers.xml.
+ *
+ * A fixed 1080x1920 image is run through the see-through pipeline from scratch ("cold")
+ * and with only the tint changed since the last lock ("retint"), and every scenario is
+ * measured for time, bytes allocated and bitmaps allocated per lock. A retint must not
+ * run any stage before the tint, the blurred image comes from the cache. Times are compared
+ * as a percentage of a calibration run of the core box blur on the same device, so the
+ * budgets hold on slow and fast devices alike, and allocations as a percentage of the
+ * output frame. One CSV row is reported per scenario and metric.
+ */
+public class PerformanceBudgets {
+
+    public static final String CSV_HEADER = "scenario,metric,measured,budget,result";
+
+    private static final String TAG = "PerformanceBudgets";
+    private static final String SCRATCH_DIR = "budgets";
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final int BLUR_AMOUNT = 100;
+    private static final int CALIBRATION_SIZE = 512;
+    private static final int CALIBRATION_RADIUS = 8;
+    private static final int WARMUP = 3;
+    private static final int ITERATIONS = 10;
+
+    private final Context mContext;
+    private final StringBuilder mCsv = new StringBuilder(CSV_HEADER).append('\n');
+    private long mCalibrationNanos;
+    private long mFrameBytes;
+    // Stages before the tint run by the pipelines of the retint scenario
+    private int mStagesBeforeTint;
+    private boolean mPassed = true;
+
+    public PerformanceBudgets(Context context) {
+        mContext = context;
+    }
+
+    @SuppressWarnings("deprecation")
+    public String run() throws IOException {
+        File dir = new File(mContext.getCacheDir(), SCRATCH_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        File image = new File(dir, BackgroundFile.LOCK_WALLPAPER);
+        writeImage(image);
+
+        Debug.startAllocCounting();
+        try {
+            calibrate();
+            checkCold(image);
+            checkRetint(image);
+        } finally {
+            Debug.stopAllocCounting();
+            BackgroundFile.clear(image);
+        }
+        return mCsv.toString();
+    }
+
+    public boolean passed() {
+        return mPassed;
+    }
+
+    private static void writeImage(File image) throws IOException {
+        Bitmap bmp = Pixels.toBitmap(SyntheticImage.create(WIDTH, HEIGHT, 1));
+        try {
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            bmp.compress(Bitmap.CompressFormat.PNG, 100, png);
+            byte[] payload = png.toByteArray();
+            BackgroundFile.write(image, WIDTH, HEIGHT, 0, payload, payload.length);
+        } finally {
+            bmp.recycle();
+        }
+    }
+
+    // A fixed amount of plain Java pixel work, the unit the time budgets are given in
+    private void calibrate() {
+        final PixelBuffer src = SyntheticImage.create(CALIBRATION_SIZE, CALIBRATION_SIZE, 1);
+        final PixelBuffer dst = new PixelBuffer(CALIBRATION_SIZE, CALIBRATION_SIZE);
+        final int[] scratch = new int[CALIBRATION_SIZE * CALIBRATION_SIZE];
+        BenchmarkRunner.Result result = BenchmarkRunner.measure("calibration", "", 0,
+                new BenchmarkRunner.Task() {
+                    @Override
+                    public void run() {
+                        BoxBlur.blur(src, dst, CALIBRATION_RADIUS, scratch);
+                    }
+                }, WARMUP, ITERATIONS, BenchmarkRunner.NO_ALLOCATION_METER);
+        mCalibrationNanos = Math.max(result.nsP50, 1);
+        mCsv.append("calibration,time_us,").append(mCalibrationNanos / 1000).append(",,\n");
+    }
+
+    private void checkCold(File image) {
+        final BackgroundPipeline pipeline = pipeline(image, SettingsActivity.LOCKSCREEN_BG_SEE_THROUGH_TINT_DARK);
+        Bitmap output = pipeline.run(mContext);
+        mFrameBytes = output.getByteCount();
+        output.recycle();
+
+        BenchmarkRunner.Task lock = new BenchmarkRunner.Task() {
+            @Override
+            public void run() {
+                pipeline.run(mContext).recycle();
+            }
+        };
+        check("cold", lock, R.integer.budget_cold_time, R.integer.budget_cold_alloc,
+                R.integer.budget_cold_bitmaps);
+    }
+
+    // Alternates the tint, so every lock finds the blurred image in the cache
+    private void checkRetint(File image) {
+        final BackgroundCache cache = new BackgroundCache();
+        final BackgroundPipeline[] pipelines = {
+                pipeline(image, SettingsActivity.LOCKSCREEN_BG_SEE_THROUGH_TINT_DARK),
+                pipeline(image, SettingsActivity.LOCKSCREEN_BG_SEE_THROUGH_TINT_LIGHT)
+        };
+        BackgroundPipeline.StageListener listener = new BackgroundPipeline.StageListener() {
+            @Override
+            public void onStage(int stage, long nanos, Bitmap output) {
+                if (stage != PerfMetrics.STAGE_TINT && stage != PerfMetrics.STAGE_ROTATE) {
+                    mStagesBeforeTint++;
+                }
+            }
+        };
+        for (BackgroundPipeline pipeline : pipelines) {
+            pipeline.setStageListener(listener);
+        }
+        pipelines[1].run(mContext, cache);
+
+        BenchmarkRunner.Task lock = new BenchmarkRunner.Task() {
+            private int mLocks;
+
+            @Override
+            public void run() {
+                pipelines[mLocks++ % 2].run(mContext, cache);
+            }
+        };
+        try {
+            mStagesBeforeTint = 0;
+            check("retint", lock, R.integer.budget_retint_time, R.integer.budget_retint_alloc,
+                    R.integer.budget_retint_bitmaps);
+            report("retint", "stages_before_tint", mStagesBeforeTint, 0);
+        } finally {
+            cache.clear();
+        }
+    }
+
+    private static BackgroundPipeline pipeline(File image, String tint) {
+        return BackgroundPipeline.forImage(image, BLUR_AMOUNT, tint)
+                .add(new BackgroundProcessors.Rotate(0));
+    }
+
+    private void check(String scenario, BenchmarkRunner.Task lock, int timeBudget, int allocBudget,
+            int bitmapBudget) {
+        BenchmarkRunner.Result result = BenchmarkRunner.measure(scenario, "", 0, lock, WARMUP, ITERATIONS,
+                KernelBenchmarks.THREAD_ALLOCATIONS);
+        BitmapAccounting.beginLock();
+        lock.run();
+        int bitmaps = BitmapAccounting.lastCount();
+
+        Resources res = mContext.getResources();
+        report(scenario, "time_percent", result.nsP50 * 100 / mCalibrationNanos, res.getInteger(timeBudget));
+        report(scenario, "alloc_percent", result.bytesPerOp * 100 / mFrameBytes, res.getInteger(allocBudget));
+        report(scenario, "bitmaps", bitmaps, res.getInteger(bitmapBudget));
+    }
+
+    private void report(String scenario, String metric, long measured, long budget) {
+        boolean within = measured <= budget;
+        if (!within) {
+            mPassed = false;
+            Log.e(TAG, scenario + " " + metric + " over budget: " + measured + " > " + budget);
+        }
+        mCsv.append(scenario).append(',').append(metric).append(',').append(measured).append(',')
+                .append(budget).append(',').append(within ? "pass" : "fail").append('\n');
+    }
+}
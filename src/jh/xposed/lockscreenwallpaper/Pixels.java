@@ -0,0 +1,40 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper;
+
+import android.graphics.Bitmap;
+import jh.xposed.lockscreenwallpaper.core.PixelBuffer;
+
+/**
+ * Moves pixels between Bitmaps and the core package's {@link PixelBuffer}s.
+ */
+public class Pixels {
+
+    // Any config is converted to non-premultiplied ARGB_8888
+    public static PixelBuffer read(Bitmap bmp) {
+        PixelBuffer buffer = new PixelBuffer(bmp.getWidth(), bmp.getHeight());
+        bmp.getPixels(buffer.pixels, 0, buffer.width, 0, 0, buffer.width, buffer.height);
+        return buffer;
+    }
+
+    // Returns a new mutable ARGB_8888 bitmap
+    public static Bitmap toBitmap(PixelBuffer buffer) {
+        Bitmap bmp = Bitmap.createBitmap(buffer.width, buffer.height, Bitmap.Config.ARGB_8888);
+        bmp.setPixels(buffer.pixels, 0, buffer.width, 0, 0, buffer.width, buffer.height);
+        return bmp;
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.graphics.Point;
+import android.util.Log;
+import android.view.WindowManager;
+import jh.xposed.lockscreenwallpaper.core.BenchmarkRunner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs the module's profiling jobs in the settings app process, started from a shell:
+ *
+ * adb shell am startservice -a jh.xposed.lockscreenwallpaper.action.BENCHMARK
+ * adb shell am startservice -a jh.xposed.lockscreenwallpaper.action.REPLAY [--es script path]
+ * adb shell am startservice -a jh.xposed.lockscreenwallpaper.action.PROFILE_CORPUS [--es corpus dir]
+ *         [--eia blur 0,50,100] [--esa tint none,dark,light] [--eia rotation 0,90]
+ *         [--esa display 1080x1920,source]
+ * adb shell am startservice -a jh.xposed.lockscreenwallpaper.action.CHECK_BUDGETS
+ * adb shell am startservice -a jh.xposed.lockscreenwallpaper.action.CHECK_STEADY_STATE
+ *         [--ei warmup 5] [--ei iterations 50]
+ * adb shell am startservice -a jh.xposed.lockscreenwallpaper.action.VERIFY_BLUR_ENGINES [--es corpus dir]
+ *         [--ez select false]
+ *
+ * Results are logged and written as CSV to the profiling folder in the app's external
+ * files dir. The service is protected by the DUMP permission, which the shell has.
+ */
+public class ProfilingService extends IntentService {
+
+    public static final String ACTION_BENCHMARK = XposedLockscreenWallpaper.PACKAGE_NAME + ".action.BENCHMARK";
+    public static final String ACTION_REPLAY = XposedLockscreenWallpaper.PACKAGE_NAME + ".action.REPLAY";
+    public static final String ACTION_PROFILE_CORPUS = XposedLockscreenWallpaper.PACKAGE_NAME + ".action.PROFILE_CORPUS";
+    public static final String ACTION_CHECK_BUDGETS = XposedLockscreenWallpaper.PACKAGE_NAME + ".action.CHECK_BUDGETS";
+    public static final String ACTION_CHECK_STEADY_STATE = XposedLockscreenWallpaper.PACKAGE_NAME + ".action.CHECK_STEADY_STATE";
+    public static final String ACTION_VERIFY_BLUR_ENGINES = XposedLockscreenWallpaper.PACKAGE_NAME + ".action.VERIFY_BLUR_ENGINES";
+    public static final String EXTRA_WARMUP = "warmup";
+    public static final String EXTRA_ITERATIONS = "iterations";
+    // Path of a HookReplay script, the bundled one is used without it
+    public static final String EXTRA_SCRIPT = "script";
+    // Directory of images for the corpus profiler, the corpus folder in the external files dir without it
+    public static final String EXTRA_CORPUS = "corpus";
+    public static final String EXTRA_BLUR_AMOUNTS = "blur";
+    public static final String EXTRA_TINTS = "tint";
+    public static final String EXTRA_ROTATIONS = "rotation";
+    public static final String EXTRA_DISPLAYS = "display";
+    // Whether the fastest verified blur engine should be used from now on, true without it
+    public static final String EXTRA_SELECT = "select";
+
+    private static final String TAG = "ProfilingService";
+    private static final String REPORT_DIR = "profiling";
+    private static final String CORPUS_DIR = "corpus";
+
+    public ProfilingService() {
+        super(TAG);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        final String action = intent.getAction();
+        try {
+            if (ACTION_BENCHMARK.equals(action)) {
+                benchmark(intent.getIntExtra(EXTRA_WARMUP, 3), intent.getIntExtra(EXTRA_ITERATIONS, 10));
+            } else if (ACTION_REPLAY.equals(action)) {
+                replay(intent.getStringExtra(EXTRA_SCRIPT));
+            } else if (ACTION_PROFILE_CORPUS.equals(action)) {
+                profileCorpus(intent);
+            } else if (ACTION_CHECK_BUDGETS.equals(action)) {
+                checkBudgets();
+            } else if (ACTION_CHECK_STEADY_STATE.equals(action)) {
+                checkSteadyState(intent.getIntExtra(EXTRA_WARMUP, 5), intent.getIntExtra(EXTRA_ITERATIONS, 50));
+            } else if (ACTION_VERIFY_BLUR_ENGINES.equals(action)) {
+                verifyBlurEngines(intent);
+            } else {
+                Log.w(TAG, "Unknown action " + action);
+            }
+        } catch (Throwable t) {
+            Log.e(TAG, action + " failed", t);
+        }
+    }
+
+    private void benchmark(int warmup, int iterations) throws IOException {
+        List<BenchmarkRunner.Result> results = KernelBenchmarks.run(this, warmup, iterations);
+        StringBuilder csv = new StringBuilder(BenchmarkRunner.CSV_HEADER).append('\n');
+        for (BenchmarkRunner.Result result : results) {
+            csv.append(result.toCsv()).append('\n');
+        }
+        writeReport("benchmark", csv.toString());
+    }
+
+    private void replay(String scriptPath) throws Throwable {
+        InputStream script = scriptPath != null
+                ? new FileInputStream(scriptPath) : HookReplay.openDefaultScript(this);
+        try {
+            writeReport("replay", new HookReplay(this).run(script));
+        } finally {
+            script.close();
+        }
+    }
+
+    private void profileCorpus(Intent intent) throws IOException {
+        String corpusPath = intent.getStringExtra(EXTRA_CORPUS);
+        File corpus = corpusPath != null ? new File(corpusPath) : getExternalFilesDir(CORPUS_DIR);
+        if (corpus == null) throw new IOException("External storage not available");
+
+        int[] blurAmounts = intent.getIntArrayExtra(EXTRA_BLUR_AMOUNTS);
+        String[] tints = intent.getStringArrayExtra(EXTRA_TINTS);
+        int[] rotations = intent.getIntArrayExtra(EXTRA_ROTATIONS);
+        String[] displays = intent.getStringArrayExtra(EXTRA_DISPLAYS);
+        if (displays == null) {
+            Point size = new Point();
+            ((WindowManager) getSystemService(WINDOW_SERVICE)).getDefaultDisplay().getRealSize(size);
+            displays = new String[] { size.x + "x" + size.y, CorpusProfiler.DISPLAY_SOURCE };
+        }
+        CorpusProfiler profiler = new CorpusProfiler(this,
+                blurAmounts != null ? blurAmounts : new int[] { 0, 50, 100 },
+                tints != null ? tints : new String[] { CorpusProfiler.TINT_NONE,
+                        SettingsActivity.LOCKSCREEN_BG_SEE_THROUGH_TINT_DARK,
+                        SettingsActivity.LOCKSCREEN_BG_SEE_THROUGH_TINT_LIGHT },
+                rotations != null ? rotations : new int[] { 0, 90 },
+                displays);
+        writeReport("corpus", profiler.run(corpus));
+    }
+
+    // The last line logged is BUDGETS PASSED or BUDGETS FAILED, for scripts to wait for
+    private void checkBudgets() throws IOException {
+        PerformanceBudgets budgets = new PerformanceBudgets(this);
+        writeReport("budgets", budgets.run());
+        if (budgets.passed()) {
+            Log.i(TAG, "BUDGETS PASSED");
+        } else {
+            Log.e(TAG, "BUDGETS FAILED");
+        }
+    }
+
+    // Logs STEADY STATE PASSED or STEADY STATE FAILED last, like checkBudgets()
+    private void checkSteadyState(int warmup, int locks) throws Throwable {
+        HookReplay replay = new HookReplay(this);
+        boolean steady = replay.checkSteadyState(warmup, locks,
+                getResources().getInteger(R.integer.budget_steady_alloc_bytes));
+        writeReport("steady-state", replay.getReport());
+        if (steady) {
+            Log.i(TAG, "STEADY STATE PASSED");
+        } else {
+            Log.e(TAG, "STEADY STATE FAILED");
+        }
+    }
+
+    private void verifyBlurEngines(Intent intent) throws IOException {
+        String corpusPath = intent.getStringExtra(EXTRA_CORPUS);
+        BlurEquivalence equivalence = new BlurEquivalence(this);
+        writeReport("blur-engines", equivalence.run(corpusPath != null
+                ? new File(corpusPath) : getExternalFilesDir(CORPUS_DIR)));
+
+        String engine = equivalence.getFastestPassingEngine();
+        if (intent.getBooleanExtra(EXTRA_SELECT, true)) {
+            // Same world readable preferences the settings screen writes, read by the keyguard
+            getSharedPreferences(getPackageName() + "_preferences", MODE_WORLD_READABLE).edit()
+                    .putString(SettingsActivity.PREF_KEY_BLUR_ENGINE, engine).commit();
+            Log.i(TAG, "Blur engine set to " + engine);
+        } else {
+            Log.i(TAG, "Fastest passing blur engine is " + engine);
+        }
+    }
+
+    // Logs the report line by line and saves it, the file can be pulled with adb
+    private File writeReport(String name, String content) throws IOException {
+        for (String line : content.split("\n")) {
+            Log.i(TAG, line);
+        }
+
+        File dir = getExternalFilesDir(REPORT_DIR);
+        if (dir == null) throw new IOException("External storage not available");
+        File file = new File(dir, name + "-"
+                + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".csv");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        Log.i(TAG, "Report written to " + file);
+        return file;
+    }
+}
@@ -19,7 +19,9 @@ package jh.xposed.lockscreenwallpaper;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.ActivityNotFoundException;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
@@ -51,12 +53,21 @@ public class SettingsActivity extends Activity {
     public static final String PREF_KEY_LOCKSCREEN_BACKGROUND_IMAGE = "pref_lockscreen_bg_image";
     public static final String PREF_KEY_LOCKSCREEN_BACKGROUND_SEE_THROUGH_TINT = "pref_lockscreen_bg_see_through_tint";
     public static final String PREF_KEY_LOCKSCREEN_BLUR_AMOUNT = "pref_lockscreen_blur_amount";
+    public static final String PREF_KEY_LOCKSCREEN_RENDER_DEADLINE = "pref_lockscreen_render_deadline";
+    public static final String PREF_KEY_DIAGNOSTICS_REPORT = "pref_diagnostics_report";
+    public static final String PREF_KEY_DIAGNOSTICS_TRACE = "pref_diagnostics_trace";
+    public static final String PREF_KEY_DIAGNOSTICS_BITMAP_BUDGET = "pref_diagnostics_bitmap_budget";
+    public static final String PREF_KEY_DIAGNOSTICS_LOG_LEVEL = "pref_diagnostics_log_level";
+    public static final String PREF_KEY_DIAGNOSTICS_LOG = "pref_diagnostics_log";
+    public static final String PREF_KEY_BLUR_ENGINE = "pref_blur_engine";
     public static final String LOCKSCREEN_BG_DEFAULT = "default";
     public static final String LOCKSCREEN_BG_COLOR = "color";
     public static final String LOCKSCREEN_BG_IMAGE = "image";
     public static final String LOCKSCREEN_BG_SEE_THROUGH = "see-through";
     public static final String LOCKSCREEN_BG_SEE_THROUGH_TINT_DARK = "dark";
     public static final String LOCKSCREEN_BG_SEE_THROUGH_TINT_LIGHT = "light";
+    public static final String LOG_LEVEL_DEFAULT = String.valueOf(ModLog.INFO);
+    public static final String RENDER_DEADLINE_DEFAULT = "250";
 
     private static final int REQ_LOCKSCREEN_BACKGROUND = 1024;
 
@@ -75,6 +86,11 @@ public class SettingsActivity extends Activity {
         private Preference mPrefLockscreenBgImage;
         private ListPreference mPrefLockscreenBgSeeThruTint;
         private SeekBarPreference mPrefLockscreenBlurAmount;
+        private ListPreference mPrefLockscreenRenderDeadline;
+        private Preference mPrefDiagnosticsReport;
+        private ListPreference mPrefDiagnosticsBitmapBudget;
+        private ListPreference mPrefDiagnosticsLogLevel;
+        private Preference mPrefDiagnosticsLog;
         private File wallpaperImage;
         private File wallpaperTemporary;
 
@@ -101,10 +117,18 @@ public class SettingsActivity extends Activity {
                     (ListPreference) findPreference(PREF_KEY_LOCKSCREEN_BACKGROUND_SEE_THROUGH_TINT);
             mPrefLockscreenBlurAmount =
                     (SeekBarPreference) findPreference(PREF_KEY_LOCKSCREEN_BLUR_AMOUNT);
+            mPrefLockscreenRenderDeadline =
+                    (ListPreference) findPreference(PREF_KEY_LOCKSCREEN_RENDER_DEADLINE);
+            mPrefDiagnosticsReport = findPreference(PREF_KEY_DIAGNOSTICS_REPORT);
+            mPrefDiagnosticsBitmapBudget =
+                    (ListPreference) findPreference(PREF_KEY_DIAGNOSTICS_BITMAP_BUDGET);
+            mPrefDiagnosticsLogLevel = (ListPreference) findPreference(PREF_KEY_DIAGNOSTICS_LOG_LEVEL);
+            mPrefDiagnosticsLog = findPreference(PREF_KEY_DIAGNOSTICS_LOG);
 
-            wallpaperImage = new File(getActivity().getFilesDir() + "/lockwallpaper");
+            wallpaperImage = new File(getActivity().getFilesDir(), BackgroundFile.LOCK_WALLPAPER);
             wallpaperTemporary = new File(getActivity().getCacheDir() + "/lockwallpaper.tmp");
-            recycleSeeThroughImage();
+            migrateLegacyWallpaper();
+            removeLegacySeeThroughImage();
         }
 
         @Override
@@ -113,8 +137,6 @@ public class SettingsActivity extends Activity {
 
             updatePreferences(null);
             mPrefs.registerOnSharedPreferenceChangeListener(this);
-
-            recycleSeeThroughImage();
         }
 
         @Override
@@ -136,21 +158,31 @@ public class SettingsActivity extends Activity {
                 mPrefCatLockscreenBg.removePreference(mPrefLockscreenBgImage);
                 mPrefCatLockscreenBg.removePreference(mPrefLockscreenBgSeeThruTint);
                 mPrefCatLockscreenBg.removePreference(mPrefLockscreenBlurAmount);
+                mPrefCatLockscreenBg.removePreference(mPrefLockscreenRenderDeadline);
                 String option = mPrefs.getString(PREF_KEY_LOCKSCREEN_BACKGROUND, LOCKSCREEN_BG_DEFAULT);
                 if (option.equals(LOCKSCREEN_BG_COLOR)) {
                     mPrefCatLockscreenBg.addPreference(mPrefLockscreenBgColor);
                 } else if (option.equals(LOCKSCREEN_BG_IMAGE)) {
                     mPrefCatLockscreenBg.addPreference(mPrefLockscreenBgImage);
                     mPrefCatLockscreenBg.addPreference(mPrefLockscreenBlurAmount);
+                    mPrefCatLockscreenBg.addPreference(mPrefLockscreenRenderDeadline);
                 } else if (option.equals(LOCKSCREEN_BG_SEE_THROUGH)) {
                     mPrefCatLockscreenBg.addPreference(mPrefLockscreenBgSeeThruTint);
                     mPrefLockscreenBgSeeThruTint.setSummary(mPrefLockscreenBgSeeThruTint.getEntry());
                     mPrefCatLockscreenBg.addPreference(mPrefLockscreenBlurAmount);
-                    recycleSeeThroughImage();
+                    mPrefCatLockscreenBg.addPreference(mPrefLockscreenRenderDeadline);
                 }
             } else if (key.equals(PREF_KEY_LOCKSCREEN_BACKGROUND_SEE_THROUGH_TINT)) {
                 mPrefLockscreenBgSeeThruTint.setSummary(mPrefLockscreenBgSeeThruTint.getEntry());
-                recycleSeeThroughImage();
+            }
+            if (key == null || key.equals(PREF_KEY_LOCKSCREEN_RENDER_DEADLINE)) {
+                mPrefLockscreenRenderDeadline.setSummary(mPrefLockscreenRenderDeadline.getEntry());
+            }
+            if (key == null || key.equals(PREF_KEY_DIAGNOSTICS_BITMAP_BUDGET)) {
+                mPrefDiagnosticsBitmapBudget.setSummary(mPrefDiagnosticsBitmapBudget.getEntry());
+            }
+            if (key == null || key.equals(PREF_KEY_DIAGNOSTICS_LOG_LEVEL)) {
+                mPrefDiagnosticsLogLevel.setSummary(mPrefDiagnosticsLogLevel.getEntry());
             }
         }
 
@@ -165,6 +197,12 @@ public class SettingsActivity extends Activity {
             if (pref == mPrefLockscreenBgImage) {
                 setCustomLockscreenImage();
                 return true;
+            } else if (pref == mPrefDiagnosticsReport) {
+                showPerformanceReport();
+                return true;
+            } else if (pref == mPrefDiagnosticsLog) {
+                showEventLog();
+                return true;
             }
 
             if (intent != null) {
@@ -230,15 +268,126 @@ public class SettingsActivity extends Activity {
             }
         }
 
-        private void recycleSeeThroughImage() {
-            File seeThroughImage = new File(getActivity().getFilesDir(), "seethroughimage");
+        private interface DiagnosticsCallback {
+            void onDiagnostics(Bundle diagnostics);
+        }
+
+        // The hooked processes add their metrics to the result extras of an ordered
+        // broadcast, the final receiver runs once all of them have answered. Only
+        // receivers holding the permission see the extras the others have added.
+        private void collectDiagnostics(final DiagnosticsCallback callback) {
+            getActivity().sendOrderedBroadcast(new Intent(PerfMetrics.ACTION_COLLECT),
+                    PerfMetrics.PERMISSION_COLLECT,
+                    new BroadcastReceiver() {
+                        @Override
+                        public void onReceive(Context context, Intent intent) {
+                            if (getActivity() == null) return;
+                            callback.onDiagnostics(getResultExtras(true));
+                        }
+                    }, null, Activity.RESULT_OK, null, null);
+        }
+
+        private void showPerformanceReport() {
+            collectDiagnostics(new DiagnosticsCallback() {
+                @Override
+                public void onDiagnostics(Bundle metrics) {
+                    final DiagnosticsReport report = new DiagnosticsReport(metrics);
+                    StringBuilder message = new StringBuilder();
+                    appendSection(message, R.string.diagnostics_keyguard,
+                            report.getStages(PerfMetrics.PROCESS_KEYGUARD));
+                    appendSection(message, R.string.diagnostics_keyguard_counters,
+                            report.getCounters(PerfMetrics.PROCESS_KEYGUARD));
+                    appendSection(message, R.string.diagnostics_bitmaps,
+                            report.getBitmaps(PerfMetrics.PROCESS_KEYGUARD));
+                    appendSection(message, R.string.diagnostics_system,
+                            report.getStages(PerfMetrics.PROCESS_SYSTEM));
+                    appendSection(message, R.string.diagnostics_system_counters,
+                            report.getCounters(PerfMetrics.PROCESS_SYSTEM));
+                    showDiagnosticsDialog(R.string.pref_diagnostics_report_title, message,
+                            report.isEmpty() ? null : report);
+                }
+            });
+        }
+
+        // Exported to the app's external files dir, which doesn't need a storage permission
+        private void exportReport(DiagnosticsReport report) {
             try {
-                if (seeThroughImage.exists()) {
-                    seeThroughImage.delete();
+                File[] files = report.export(getActivity().getExternalFilesDir(null));
+                Toast.makeText(getActivity(), getString(R.string.diagnostics_export_successful,
+                        files[0].getParent()), Toast.LENGTH_LONG).show();
+            } catch (Exception e) {
+                Log.e("SettingsActivity", "Exporting diagnostics failed: " + e.getMessage());
+                Toast.makeText(getActivity(), getString(R.string.diagnostics_export_not_successful),
+                        Toast.LENGTH_SHORT).show();
+            }
+        }
+
+        private void showEventLog() {
+            collectDiagnostics(new DiagnosticsCallback() {
+                @Override
+                public void onDiagnostics(Bundle diagnostics) {
+                    StringBuilder message = new StringBuilder();
+                    appendSection(message, R.string.diagnostics_keyguard, diagnostics.getString(
+                            PerfMetrics.PROCESS_KEYGUARD + PerfMetrics.EXTRA_LOG_SUFFIX));
+                    appendSection(message, R.string.diagnostics_system, diagnostics.getString(
+                            PerfMetrics.PROCESS_SYSTEM + PerfMetrics.EXTRA_LOG_SUFFIX));
+                    showDiagnosticsDialog(R.string.pref_diagnostics_log_title, message, null);
                 }
-                seeThroughImage.createNewFile();
-                seeThroughImage.setReadable(true, false);
-                seeThroughImage.setWritable(true, false);
+            });
+        }
+
+        private void appendSection(StringBuilder message, int titleRes, String content) {
+            if (content == null || content.isEmpty()) return;
+            message.append(getString(titleRes)).append('\n').append(content).append('\n');
+        }
+
+        private void showDiagnosticsDialog(int titleRes, StringBuilder message,
+                final DiagnosticsReport exportable) {
+            if (message.length() == 0) {
+                message.append(getString(R.string.diagnostics_no_data));
+            }
+            AlertDialog.Builder builder = new AlertDialog.Builder(getActivity())
+                    .setTitle(titleRes)
+                    .setMessage(message.toString())
+                    .setPositiveButton(android.R.string.ok, null);
+            if (exportable != null) {
+                builder.setNeutralButton(R.string.diagnostics_export, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        exportReport(exportable);
+                    }
+                });
+            }
+            mDialog = builder.show();
+        }
+
+        private void removeLegacySeeThroughImage() {
+            // Earlier versions opened up the whole files dir and kept the image in it.
+            // Others only need to get through it, to the wallpaper.
+            File filesDir = getActivity().getFilesDir();
+            filesDir.setReadable(false, false);
+            filesDir.setReadable(true, true);
+            filesDir.setWritable(false, false);
+            filesDir.setWritable(true, true);
+            filesDir.setExecutable(true, false);
+            BackgroundFile.clear(new File(filesDir, BackgroundFile.SEE_THROUGH_IMAGE));
+
+            // The world-writable capture dir is gone, system_server keeps the image now
+            File seeThroughDir = new File(filesDir, BackgroundFile.LEGACY_SEE_THROUGH_DIR);
+            File[] files = seeThroughDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    BackgroundFile.clear(file);
+                }
+            }
+            seeThroughDir.delete();
+        }
+
+        // Images picked before the versioned file format was introduced are plain encoded files
+        private void migrateLegacyWallpaper() {
+            if (!wallpaperImage.exists() || BackgroundFile.readHeader(wallpaperImage) != null) return;
+            try {
+                BackgroundFile.publish(wallpaperImage, wallpaperImage);
             } catch (Exception e) {
                 Log.e("SettingsActivity", e.getLocalizedMessage());
             }
@@ -247,11 +396,17 @@ public class SettingsActivity extends Activity {
         @Override
         public void onActivityResult(int requestCode, int resultCode, Intent data) {
             if (requestCode == REQ_LOCKSCREEN_BACKGROUND) {
-                if (resultCode == Activity.RESULT_OK) {
-                    if (wallpaperTemporary.exists()) {
-                        wallpaperTemporary.renameTo(wallpaperImage);
+                boolean published = false;
+                if (resultCode == Activity.RESULT_OK && wallpaperTemporary.exists()) {
+                    try {
+                        BackgroundFile.publish(wallpaperTemporary, wallpaperImage);
+                        published = true;
+                    } catch (Exception e) {
+                        Log.e("SettingsActivity", e.getLocalizedMessage());
                     }
-                    wallpaperImage.setReadable(true, false);
+                }
+                if (published) {
+                    wallpaperTemporary.delete();
                     Toast.makeText(getActivity(), getString(
                             R.string.lockscreen_background_result_successful),
                             Toast.LENGTH_SHORT).show();
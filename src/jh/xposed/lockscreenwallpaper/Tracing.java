@@ -0,0 +1,119 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper;
+
+import android.os.Trace;
+
+import java.lang.reflect.Method;
+
+/**
+ * Named systrace sections around the module's hot paths, switched on and off from the
+ * settings app.
+ *
+ * Sections are emitted with the same trace tag as the framework code around them
+ * (view for the keyguard, power for system_server), so they show up next to the
+ * framework's own slices without enabling app tracing. If the hidden tagged API is not
+ * available the public app tag is used instead.
+ */
+public class Tracing {
+
+    public static final String TAG_VIEW = "TRACE_TAG_VIEW";
+    public static final String TAG_POWER = "TRACE_TAG_POWER";
+
+    public static final String SECTION_KEYGUARD_HOOK = "LockscreenWallpaper:keyguardHook";
+    public static final String SECTION_SET_BITMAP = "LockscreenWallpaper:setLockscreenBitmap";
+    public static final String SECTION_CAPTURE = "LockscreenWallpaper:capture";
+
+    // One section per PerfMetrics stage, built once so beginning one doesn't allocate
+    private static final String[] STAGE_SECTIONS = new String[PerfMetrics.STAGE_NAMES.length];
+
+    static {
+        for (int stage = 0; stage < STAGE_SECTIONS.length; stage++) {
+            STAGE_SECTIONS[stage] = "LockscreenWallpaper:" + PerfMetrics.STAGE_NAMES[stage];
+        }
+    }
+
+    private static volatile boolean sEnabled;
+    // Chosen once by init(), begin() and end() always go through the same API
+    private static Method sTraceBegin;
+    private static Method sTraceEnd;
+    // Arguments of the reflective calls, boxed once. Begin arguments are per thread
+    // since sections are opened on the main and the worker threads.
+    private static Object[] sTraceEndArgs;
+    private static final ThreadLocal<Object[]> sTraceBeginArgs = new ThreadLocal<Object[]>() {
+        @Override
+        protected Object[] initialValue() {
+            return new Object[] { sTraceEndArgs[0], null };
+        }
+    };
+
+    // Resolves the framework trace tag for this process, call once from the hook's init
+    public static void init(String tagField) {
+        try {
+            Long traceTag = Trace.class.getField(tagField).getLong(null);
+            Method traceBegin = Trace.class.getMethod("traceBegin", long.class, String.class);
+            Method traceEnd = Trace.class.getMethod("traceEnd", long.class);
+            sTraceEndArgs = new Object[] { traceTag };
+            sTraceBegin = traceBegin;
+            sTraceEnd = traceEnd;
+        } catch (Throwable t) {
+            sTraceBegin = null;
+            sTraceEnd = null;
+        }
+    }
+
+    public static String stageSection(int stage) {
+        return STAGE_SECTIONS[stage];
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    // Returns whether a section was opened; pass the result to end() so that toggling
+    // tracing in the middle of a section can't unbalance the trace
+    public static boolean begin(String name) {
+        if (!sEnabled) return false;
+
+        if (sTraceBegin == null) {
+            Trace.beginSection(name);
+            return true;
+        }
+        Object[] args = sTraceBeginArgs.get();
+        args[1] = name;
+        try {
+            sTraceBegin.invoke(null, args);
+            return true;
+        } catch (Throwable t) {
+            // Nothing was opened, so there is nothing for end() to close
+            return false;
+        }
+    }
+
+    public static void end(boolean begun) {
+        if (!begun) return;
+
+        if (sTraceEnd == null) {
+            Trace.endSection();
+            return;
+        }
+        try {
+            sTraceEnd.invoke(null, sTraceEndArgs);
+        } catch (Throwable ignored) {
+        }
+    }
+}
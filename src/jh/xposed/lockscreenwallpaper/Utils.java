@@ -24,10 +24,18 @@ import android.renderscript.RenderScript;
 import android.renderscript.ScriptIntrinsicBlur;
 import android.util.DisplayMetrics;
 import android.view.WindowManager;
+import jh.xposed.lockscreenwallpaper.core.BoxBlur;
+import jh.xposed.lockscreenwallpaper.core.Fingerprint;
 
 public class Utils {
 
-    public static final int MAX_BLUR_WIDTH = 900;
+    // Blur implementations, see blurBitmap(Bitmap, int, String, Context)
+    public static final String BLUR_ENGINE_RENDERSCRIPT = "renderscript";
+    public static final String BLUR_ENGINE_BOX = "box";
+    public static final String BLUR_ENGINE_BOX_HALF = "box_half";
+    public static final String[] BLUR_ENGINES = {
+            BLUR_ENGINE_RENDERSCRIPT, BLUR_ENGINE_BOX, BLUR_ENGINE_BOX_HALF
+    };
 
     // Device types
     private static final int DEVICE_PHONE = 0;
@@ -37,6 +45,9 @@ public class Utils {
     // Device type reference
     private static int mDeviceType = -1;
 
+    private static RenderScript sRenderScript;
+    private static ScriptIntrinsicBlur sBlurScript;
+
     private static int getScreenType(Context con) {
         if (mDeviceType == -1) {
             WindowManager wm = (WindowManager)con.getSystemService(Context.WINDOW_SERVICE);
@@ -62,30 +73,102 @@ public class Utils {
         return getScreenType(con) == DEVICE_TABLET;
     }
 
-    public static Bitmap blurBitmap(Bitmap bmp, int radius, Context context) {
+    // Returns bmp itself if it isn't wider than maxWidth
+    public static Bitmap scaleToWidth(Bitmap bmp, int maxWidth) {
         int bmpWidth = bmp.getWidth();
-        int bmpHeight = bmp.getHeight();
-        float scale = (float) MAX_BLUR_WIDTH / bmpWidth;
-        if (bmpWidth > MAX_BLUR_WIDTH) {
-            bmp = bmp.createScaledBitmap(bmp, MAX_BLUR_WIDTH, Math.round(bmpHeight * scale), true);
+        if (bmpWidth <= maxWidth) return bmp;
+
+        float scale = (float) maxWidth / bmpWidth;
+        return Bitmap.createScaledBitmap(bmp, maxWidth, Math.round(bmp.getHeight() * scale), true);
+    }
+
+    // Creating a RenderScript context and its blur script takes long enough to show on the
+    // first lock, so both are kept for the life of the process. Ready to use after this.
+    public static synchronized void prepareBlur(Context context) {
+        if (sRenderScript == null) {
+            sRenderScript = RenderScript.create(context);
+            sBlurScript = ScriptIntrinsicBlur.create(sRenderScript, Element.U8_4(sRenderScript));
         }
-        Bitmap out = Bitmap.createBitmap(bmp);
-        RenderScript rs = RenderScript.create(context);
+    }
+
+    // Always returns a new bitmap, bmp is left untouched
+    public static synchronized Bitmap blurBitmap(Bitmap bmp, int radius, Context context) {
+        Bitmap out = Bitmap.createBitmap(bmp.getWidth(), bmp.getHeight(), Bitmap.Config.ARGB_8888);
+        prepareBlur(context);
 
         Allocation input = Allocation.createFromBitmap(
-                rs, bmp, Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_SCRIPT);
-        Allocation output = Allocation.createTyped(rs, input.getType());
+                sRenderScript, bmp, Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_SCRIPT);
+        Allocation output = Allocation.createTyped(sRenderScript, input.getType());
 
-        ScriptIntrinsicBlur script = ScriptIntrinsicBlur.create(rs, Element.U8_4(rs));
-        script.setInput(input);
-        script.setRadius(radius);
-        script.forEach(output);
+        sBlurScript.setInput(input);
+        sBlurScript.setRadius(radius);
+        sBlurScript.forEach(output);
 
         output.copyTo(out);
 
-        rs.destroy();
+        input.destroy();
+        output.destroy();
+        return out;
+    }
+
+    // Blurs with the given engine, unknown engines fall back to RenderScript.
+    // Always returns a new bitmap, bmp is left untouched.
+    public static Bitmap blurBitmap(Bitmap bmp, int radius, String engine, Context context) {
+        if (BLUR_ENGINE_BOX.equals(engine)) {
+            return boxBlurBitmap(bmp, radius, 1);
+        } else if (BLUR_ENGINE_BOX_HALF.equals(engine)) {
+            return boxBlurBitmap(bmp, radius, 2);
+        }
+        return blurBitmap(bmp, radius, context);
+    }
+
+    // Box blur approximation of the RenderScript blur. With a downsample factor the
+    // image is blurred at that fraction of its size and scaled back up.
+    // Always returns a new bitmap, bmp is left untouched.
+    public static Bitmap boxBlurBitmap(Bitmap bmp, int radius, int downsample) {
+        final int width = bmp.getWidth();
+        final int height = bmp.getHeight();
+        Bitmap small = downsample > 1 ? Bitmap.createScaledBitmap(bmp,
+                Math.max(1, width / downsample), Math.max(1, height / downsample), true) : bmp;
+        Bitmap out = Pixels.toBitmap(BoxBlur.blur(Pixels.read(small), Math.max(1, radius / downsample)));
+        if (small != bmp) small.recycle();
+        if (out.getWidth() != width || out.getHeight() != height) {
+            Bitmap full = Bitmap.createScaledBitmap(out, width, height, true);
+            out.recycle();
+            out = full;
+        }
         return out;
     }
 
+    // Average color of a smooth (e.g. blurred) image, from a small filtered copy
+    public static int dominantColor(Bitmap bmp) {
+        final int size = 8;
+        Bitmap small = Bitmap.createScaledBitmap(bmp, size, size, true);
+        int[] pixels = new int[size * size];
+        small.getPixels(pixels, 0, size, 0, 0, size, size);
+        if (small != bmp) small.recycle();
+
+        int r = 0, g = 0, b = 0;
+        for (int c : pixels) {
+            r += (c >> 16) & 0xff;
+            g += (c >> 8) & 0xff;
+            b += c & 0xff;
+        }
+        return 0xff000000 | (r / pixels.length) << 16 | (g / pixels.length) << 8 | (b / pixels.length);
+    }
+
+    // Fingerprint of a bitmap, see core.Fingerprint
+    public static long fingerprintBitmap(Bitmap bmp) {
+        int width = bmp.getWidth();
+        int height = bmp.getHeight();
+        int[] row = new int[width];
+        long hash = Fingerprint.INITIAL;
+        for (int y = 0; y < height; y++) {
+            bmp.getPixels(row, 0, width, 0, y, width, 1);
+            hash = Fingerprint.update(hash, row, 0, width);
+        }
+        return hash;
+    }
+
 }
 
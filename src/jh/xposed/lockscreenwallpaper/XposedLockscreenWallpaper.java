@@ -22,7 +22,9 @@ import de.robv.android.xposed.XSharedPreferences;
 import de.robv.android.xposed.callbacks.XC_LoadPackage.LoadPackageParam;
 
 public class XposedLockscreenWallpaper implements IXposedHookLoadPackage, IXposedHookZygoteInit {
-    public static final String PACKAGE_NAME = XposedLockscreenWallpaper.class.getPackage().getName();
+    // A constant, so the settings app can use it without loading this class, which
+    // needs the Xposed framework
+    public static final String PACKAGE_NAME = "jh.xposed.lockscreenwallpaper";
     public static String MODULE_PATH;
     private static XSharedPreferences prefs;
 
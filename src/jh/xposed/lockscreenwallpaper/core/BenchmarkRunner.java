@@ -0,0 +1,119 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper.core;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Minimal microbenchmark loop: warm-up iterations, then timed iterations of a single
+ * operation, with allocations measured by a platform specific {@link AllocationMeter}.
+ */
+public final class BenchmarkRunner {
+
+    public static final String CSV_HEADER =
+            "benchmark,params,iterations,ns_p50,ns_min,ops_per_s,mpx_per_s,bytes_per_op,allocs_per_op";
+
+    public interface Task {
+        void run();
+    }
+
+    // Counts what the calling thread allocates, -1 where a platform can't tell
+    public interface AllocationMeter {
+        void reset();
+
+        long bytes();
+
+        long count();
+    }
+
+    public static final AllocationMeter NO_ALLOCATION_METER = new AllocationMeter() {
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public long bytes() {
+            return -1;
+        }
+
+        @Override
+        public long count() {
+            return -1;
+        }
+    };
+
+    public static class Result {
+        public final String name;
+        public final String params;
+        public final int iterations;
+        public final long nsP50;
+        public final long nsMin;
+        public final double opsPerSecond;
+        public final double megapixelsPerSecond;
+        public final long bytesPerOp;
+        public final long allocsPerOp;
+
+        Result(String name, String params, int iterations, long nsP50, long nsMin, double opsPerSecond,
+                double megapixelsPerSecond, long bytesPerOp, long allocsPerOp) {
+            this.name = name;
+            this.params = params;
+            this.iterations = iterations;
+            this.nsP50 = nsP50;
+            this.nsMin = nsMin;
+            this.opsPerSecond = opsPerSecond;
+            this.megapixelsPerSecond = megapixelsPerSecond;
+            this.bytesPerOp = bytesPerOp;
+            this.allocsPerOp = allocsPerOp;
+        }
+
+        public String toCsv() {
+            return name + "," + params + "," + iterations + "," + nsP50 + "," + nsMin + ","
+                    + String.format(Locale.US, "%.2f,%.2f", opsPerSecond, megapixelsPerSecond) + ","
+                    + bytesPerOp + "," + allocsPerOp;
+        }
+    }
+
+    private BenchmarkRunner() {
+    }
+
+    // pixels is the number of pixels one operation processes, for the throughput column
+    public static Result measure(String name, String params, long pixels, Task task,
+            int warmup, int iterations, AllocationMeter meter) {
+        for (int i = 0; i < warmup; i++) {
+            task.run();
+        }
+
+        long[] times = new long[iterations];
+        long total = 0;
+        meter.reset();
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            task.run();
+            times[i] = System.nanoTime() - start;
+            total += times[i];
+        }
+        long bytes = meter.bytes();
+        long count = meter.count();
+
+        Arrays.sort(times);
+        double seconds = Math.max(total, 1) / 1e9;
+        return new Result(name, params, iterations, times[(iterations - 1) / 2], times[0],
+                iterations / seconds, pixels * (double) iterations / seconds / 1e6,
+                bytes < 0 ? -1 : bytes / iterations, count < 0 ? -1 : count / iterations);
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper.core;
+
+/**
+ * Gaussian blur approximated by three successive box blurs, each done as a horizontal
+ * and a vertical sliding window pass. The cost doesn't depend on the radius.
+ *
+ * The radius has the meaning of ScriptIntrinsicBlur's, so both can be used for the
+ * same setting.
+ */
+public final class BoxBlur {
+
+    private static final int PASSES = 3;
+
+    private BoxBlur() {
+    }
+
+    public static PixelBuffer blur(PixelBuffer src, int radius) {
+        PixelBuffer dst = new PixelBuffer(src.width, src.height);
+        blur(src, dst, radius, new int[src.width * src.height]);
+        return dst;
+    }
+
+    // dst may be src. scratch needs room for width * height pixels.
+    public static void blur(PixelBuffer src, PixelBuffer dst, int radius, int[] scratch) {
+        final int w = src.width;
+        final int h = src.height;
+        final int[] boxes = boxRadii(sigma(radius));
+        int[] in = src.pixels;
+        for (int pass = 0; pass < PASSES; pass++) {
+            horizontal(in, scratch, w, h, boxes[pass]);
+            vertical(scratch, dst.pixels, w, h, boxes[pass]);
+            in = dst.pixels;
+        }
+    }
+
+    // The relation ScriptIntrinsicBlur uses between radius and standard deviation
+    static float sigma(int radius) {
+        return 0.4f * radius + 0.6f;
+    }
+
+    // Radii of PASSES boxes whose combined variance matches sigma
+    static int[] boxRadii(float sigma) {
+        double ideal = Math.sqrt(12 * sigma * sigma / PASSES + 1);
+        int lower = (int) Math.floor(ideal);
+        if (lower % 2 == 0) lower--;
+        int upper = lower + 2;
+        double m = (12 * sigma * sigma - PASSES * lower * lower - 4 * PASSES * lower - 3 * PASSES)
+                / (-4 * lower - 4);
+        int smaller = (int) Math.round(m);
+
+        int[] radii = new int[PASSES];
+        for (int i = 0; i < PASSES; i++) {
+            radii[i] = ((i < smaller ? lower : upper) - 1) / 2;
+        }
+        return radii;
+    }
+
+    private static void horizontal(int[] in, int[] out, int w, int h, int r) {
+        final int div = 2 * r + 1;
+        for (int y = 0; y < h; y++) {
+            final int row = y * w;
+            int a = 0, red = 0, g = 0, b = 0;
+            for (int i = -r; i <= r; i++) {
+                int c = in[row + clamp(i, w)];
+                a += c >>> 24;
+                red += (c >> 16) & 0xff;
+                g += (c >> 8) & 0xff;
+                b += c & 0xff;
+            }
+            for (int x = 0; x < w; x++) {
+                out[row + x] = (a / div) << 24 | (red / div) << 16 | (g / div) << 8 | (b / div);
+                int c = in[row + clamp(x - r, w)];
+                int n = in[row + clamp(x + r + 1, w)];
+                a += (n >>> 24) - (c >>> 24);
+                red += ((n >> 16) & 0xff) - ((c >> 16) & 0xff);
+                g += ((n >> 8) & 0xff) - ((c >> 8) & 0xff);
+                b += (n & 0xff) - (c & 0xff);
+            }
+        }
+    }
+
+    private static void vertical(int[] in, int[] out, int w, int h, int r) {
+        final int div = 2 * r + 1;
+        for (int x = 0; x < w; x++) {
+            int a = 0, red = 0, g = 0, b = 0;
+            for (int i = -r; i <= r; i++) {
+                int c = in[clamp(i, h) * w + x];
+                a += c >>> 24;
+                red += (c >> 16) & 0xff;
+                g += (c >> 8) & 0xff;
+                b += c & 0xff;
+            }
+            for (int y = 0; y < h; y++) {
+                out[y * w + x] = (a / div) << 24 | (red / div) << 16 | (g / div) << 8 | (b / div);
+                int c = in[clamp(y - r, h) * w + x];
+                int n = in[clamp(y + r + 1, h) * w + x];
+                a += (n >>> 24) - (c >>> 24);
+                red += ((n >> 16) & 0xff) - ((c >> 16) & 0xff);
+                g += ((n >> 8) & 0xff) - ((c >> 8) & 0xff);
+                b += (n & 0xff) - (c & 0xff);
+            }
+        }
+    }
+
+    // Edge pixels are repeated beyond the image
+    private static int clamp(int i, int size) {
+        return i < 0 ? 0 : i >= size ? size - 1 : i;
+    }
+}
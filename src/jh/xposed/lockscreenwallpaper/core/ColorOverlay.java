@@ -0,0 +1,49 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper.core;
+
+/**
+ * Draws a translucent color over an image, the same as Canvas.drawColor() with the
+ * default SRC_OVER mode.
+ */
+public final class ColorOverlay {
+
+    private ColorOverlay() {
+    }
+
+    // dst may be src
+    public static void apply(PixelBuffer src, PixelBuffer dst, int color) {
+        final int ta = color >>> 24;
+        final int inv = 255 - ta;
+        // Tint contribution per channel, premultiplied once
+        final int tr = ((color >> 16) & 0xff) * ta;
+        final int tg = ((color >> 8) & 0xff) * ta;
+        final int tb = (color & 0xff) * ta;
+        final int[] in = src.pixels;
+        final int[] out = dst.pixels;
+        final int n = src.width * src.height;
+        for (int i = 0; i < n; i++) {
+            int c = in[i];
+            int a = c >>> 24;
+            int r = (((c >> 16) & 0xff) * inv + tr + 127) / 255;
+            int g = (((c >> 8) & 0xff) * inv + tg + 127) / 255;
+            int b = ((c & 0xff) * inv + tb + 127) / 255;
+            a = a + (ta * (255 - a) + 127) / 255;
+            out[i] = a << 24 | r << 16 | g << 8 | b;
+        }
+    }
+}
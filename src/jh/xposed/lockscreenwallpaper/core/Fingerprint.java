@@ -0,0 +1,45 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper.core;
+
+/**
+ * FNV-1a over pixels. Only the alpha channel is dropped, screenshots are opaque and any
+ * change to the color channels, however small, gives a different fingerprint.
+ */
+public final class Fingerprint {
+
+    public static final long INITIAL = 0xcbf29ce484222325L;
+
+    private static final long PRIME = 0x100000001b3L;
+    private static final int MASK = 0xffffff;
+
+    private Fingerprint() {
+    }
+
+    // Continues hash over count pixels starting at offset, start with INITIAL
+    public static long update(long hash, int[] pixels, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            hash ^= pixels[i] & MASK;
+            hash *= PRIME;
+        }
+        return hash;
+    }
+
+    public static long of(PixelBuffer buffer) {
+        return update(INITIAL, buffer.pixels, 0, buffer.width * buffer.height);
+    }
+}
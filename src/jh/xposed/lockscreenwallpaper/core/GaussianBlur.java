@@ -0,0 +1,92 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper.core;
+
+/**
+ * Gaussian blur with ScriptIntrinsicBlur's kernel: 2 * radius + 1 weights for the
+ * standard deviation of {@link BoxBlur#sigma(int)}, normalized, with the edge pixels
+ * repeated beyond the image. Far too slow for the lockscreen, it is the reference the
+ * blur engines are checked against, so it is the same on every device and its output
+ * is pinned by the unit tests.
+ *
+ * The horizontal pass is rounded to 8 bits per channel before the vertical one.
+ */
+public final class GaussianBlur {
+
+    private GaussianBlur() {
+    }
+
+    public static PixelBuffer blur(PixelBuffer src, int radius) {
+        final int w = src.width;
+        final int h = src.height;
+        final float[] kernel = kernel(radius);
+        int[] scratch = new int[w * h];
+        PixelBuffer dst = new PixelBuffer(w, h);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                scratch[y * w + x] = convolve(src.pixels, y * w, 1, x, w, kernel, radius);
+            }
+        }
+        for (int x = 0; x < w; x++) {
+            for (int y = 0; y < h; y++) {
+                dst.pixels[y * w + x] = convolve(scratch, x, w, y, h, kernel, radius);
+            }
+        }
+        return dst;
+    }
+
+    // Weights for offsets -radius to radius, summing to 1
+    static float[] kernel(int radius) {
+        final float sigma = BoxBlur.sigma(radius);
+        float[] kernel = new float[2 * radius + 1];
+        float sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            kernel[i + radius] = (float) StrictMath.exp(-(i * i) / (2.0 * sigma * sigma));
+            sum += kernel[i + radius];
+        }
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] /= sum;
+        }
+        return kernel;
+    }
+
+    // One output pixel of a pass along a line of size pixels, starting at start
+    // and step apart in in
+    private static int convolve(int[] in, int start, int step, int pos, int size,
+            float[] kernel, int radius) {
+        float a = 0, r = 0, g = 0, b = 0;
+        for (int i = -radius; i <= radius; i++) {
+            int c = in[start + clamp(pos + i, size) * step];
+            float weight = kernel[i + radius];
+            a += (c >>> 24) * weight;
+            r += ((c >> 16) & 0xff) * weight;
+            g += ((c >> 8) & 0xff) * weight;
+            b += (c & 0xff) * weight;
+        }
+        return channel(a) << 24 | channel(r) << 16 | channel(g) << 8 | channel(b);
+    }
+
+    private static int channel(float value) {
+        int rounded = Math.round(value);
+        return rounded < 0 ? 0 : rounded > 255 ? 255 : rounded;
+    }
+
+    // Edge pixels are repeated beyond the image
+    private static int clamp(int i, int size) {
+        return i < 0 ? 0 : i >= size ? size - 1 : i;
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper.core;
+
+/**
+ * Full reference image comparisons, for checking a faster kernel against the one it
+ * replaces. Both buffers must have the same size, alpha is ignored.
+ */
+public final class ImageQuality {
+
+    // Window size of the SSIM and its stabilizing constants for 8 bit values
+    private static final int SSIM_WINDOW = 8;
+    private static final double C1 = (0.01 * 255) * (0.01 * 255);
+    private static final double C2 = (0.03 * 255) * (0.03 * 255);
+
+    private ImageQuality() {
+    }
+
+    // Peak signal to noise ratio over the color channels in dB, infinite for equal images
+    public static double psnr(PixelBuffer a, PixelBuffer b) {
+        checkSize(a, b);
+        final int[] pa = a.pixels;
+        final int[] pb = b.pixels;
+        final int n = a.width * a.height;
+        long sum = 0;
+        for (int i = 0; i < n; i++) {
+            int ca = pa[i];
+            int cb = pb[i];
+            int dr = ((ca >> 16) & 0xff) - ((cb >> 16) & 0xff);
+            int dg = ((ca >> 8) & 0xff) - ((cb >> 8) & 0xff);
+            int db = (ca & 0xff) - (cb & 0xff);
+            sum += dr * dr + dg * dg + db * db;
+        }
+        if (sum == 0) return Double.POSITIVE_INFINITY;
+        double mse = (double) sum / (3L * n);
+        return 10 * Math.log10(255 * 255 / mse);
+    }
+
+    // Mean structural similarity of the luma over non-overlapping 8x8 windows, 1 for equal images
+    public static double ssim(PixelBuffer a, PixelBuffer b) {
+        checkSize(a, b);
+        double total = 0;
+        int windows = 0;
+        for (int y = 0; y + SSIM_WINDOW <= a.height; y += SSIM_WINDOW) {
+            for (int x = 0; x + SSIM_WINDOW <= a.width; x += SSIM_WINDOW) {
+                total += windowSsim(a, b, x, y);
+                windows++;
+            }
+        }
+        return windows > 0 ? total / windows : 1;
+    }
+
+    private static double windowSsim(PixelBuffer a, PixelBuffer b, int x0, int y0) {
+        double sumA = 0, sumB = 0, sumAA = 0, sumBB = 0, sumAB = 0;
+        for (int y = y0; y < y0 + SSIM_WINDOW; y++) {
+            int row = y * a.width;
+            for (int x = x0; x < x0 + SSIM_WINDOW; x++) {
+                int la = luma(a.pixels[row + x]);
+                int lb = luma(b.pixels[row + x]);
+                sumA += la;
+                sumB += lb;
+                sumAA += la * la;
+                sumBB += lb * lb;
+                sumAB += la * lb;
+            }
+        }
+        final int n = SSIM_WINDOW * SSIM_WINDOW;
+        double meanA = sumA / n;
+        double meanB = sumB / n;
+        double varA = sumAA / n - meanA * meanA;
+        double varB = sumBB / n - meanB * meanB;
+        double cov = sumAB / n - meanA * meanB;
+        return (2 * meanA * meanB + C1) * (2 * cov + C2)
+                / ((meanA * meanA + meanB * meanB + C1) * (varA + varB + C2));
+    }
+
+    // Rec. 601 weights in fixed point
+    private static int luma(int c) {
+        return (((c >> 16) & 0xff) * 77 + ((c >> 8) & 0xff) * 150 + (c & 0xff) * 29) >> 8;
+    }
+
+    private static void checkSize(PixelBuffer a, PixelBuffer b) {
+        if (a.width != b.width || a.height != b.height) {
+            throw new IllegalArgumentException("Sizes differ: " + a.width + "x" + a.height
+                    + " and " + b.width + "x" + b.height);
+        }
+    }
+}
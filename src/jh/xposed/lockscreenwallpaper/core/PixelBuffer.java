@@ -0,0 +1,50 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper.core;
+
+/**
+ * An image as packed, non-premultiplied ARGB_8888 ints, row by row without padding.
+ * This is the layout Bitmap.getPixels() and setPixels() use with a stride of width.
+ */
+public final class PixelBuffer {
+
+    public final int width;
+    public final int height;
+    public final int[] pixels;
+
+    public PixelBuffer(int width, int height) {
+        this(width, height, new int[width * height]);
+    }
+
+    public PixelBuffer(int width, int height, int[] pixels) {
+        if (width <= 0 || height <= 0 || pixels.length < width * height) {
+            throw new IllegalArgumentException("Invalid size " + width + "x" + height
+                    + " for " + pixels.length + " pixels");
+        }
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    public int getPixel(int x, int y) {
+        return pixels[y * width + x];
+    }
+
+    public void setPixel(int x, int y, int color) {
+        pixels[y * width + x] = color;
+    }
+}
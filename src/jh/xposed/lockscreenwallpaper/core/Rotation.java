@@ -0,0 +1,60 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper.core;
+
+/**
+ * Rotates by multiples of 90 degrees. Positive angles turn clockwise, as with
+ * Matrix.postRotate() in screen coordinates.
+ */
+public final class Rotation {
+
+    private Rotation() {
+    }
+
+    // Returns src itself for a multiple of 360 degrees
+    public static PixelBuffer rotate(PixelBuffer src, int degrees) {
+        if (degrees % 90 != 0) {
+            throw new IllegalArgumentException("Not a multiple of 90 degrees: " + degrees);
+        }
+        final int turns = ((degrees / 90) % 4 + 4) % 4;
+        if (turns == 0) return src;
+
+        final int w = src.width;
+        final int h = src.height;
+        final int[] in = src.pixels;
+        PixelBuffer dst = turns == 2 ? new PixelBuffer(w, h) : new PixelBuffer(h, w);
+        final int[] out = dst.pixels;
+        for (int y = 0; y < h; y++) {
+            int row = y * w;
+            for (int x = 0; x < w; x++) {
+                int c = in[row + x];
+                switch (turns) {
+                    case 1:
+                        out[x * h + (h - 1 - y)] = c;
+                        break;
+                    case 2:
+                        out[(h - 1 - y) * w + (w - 1 - x)] = c;
+                        break;
+                    default:
+                        out[(w - 1 - x) * h + y] = c;
+                        break;
+                }
+            }
+        }
+        return dst;
+    }
+}
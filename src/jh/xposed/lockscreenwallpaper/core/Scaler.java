@@ -0,0 +1,69 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper.core;
+
+/**
+ * Resizes by averaging the source pixels that fall into each destination pixel. When
+ * enlarging every box is a single source pixel, so this degrades to nearest neighbour.
+ */
+public final class Scaler {
+
+    private Scaler() {
+    }
+
+    // Returns src itself if it isn't wider than maxWidth, keeps the aspect ratio
+    public static PixelBuffer scaleToWidth(PixelBuffer src, int maxWidth) {
+        if (src.width <= maxWidth) return src;
+
+        int height = Math.max(1, Math.round(src.height * (float) maxWidth / src.width));
+        PixelBuffer dst = new PixelBuffer(maxWidth, height);
+        scale(src, dst);
+        return dst;
+    }
+
+    public static void scale(PixelBuffer src, PixelBuffer dst) {
+        final int[] in = src.pixels;
+        final int[] out = dst.pixels;
+        final int[] x0 = new int[dst.width];
+        final int[] x1 = new int[dst.width];
+        for (int x = 0; x < dst.width; x++) {
+            x0[x] = (int) ((long) x * src.width / dst.width);
+            x1[x] = Math.max(x0[x] + 1, (int) ((long) (x + 1) * src.width / dst.width));
+        }
+
+        for (int y = 0; y < dst.height; y++) {
+            int y0 = (int) ((long) y * src.height / dst.height);
+            int y1 = Math.max(y0 + 1, (int) ((long) (y + 1) * src.height / dst.height));
+            int row = y * dst.width;
+            for (int x = 0; x < dst.width; x++) {
+                int a = 0, r = 0, g = 0, b = 0;
+                for (int sy = y0; sy < y1; sy++) {
+                    int offset = sy * src.width;
+                    for (int sx = x0[x]; sx < x1[x]; sx++) {
+                        int c = in[offset + sx];
+                        a += c >>> 24;
+                        r += (c >> 16) & 0xff;
+                        g += (c >> 8) & 0xff;
+                        b += c & 0xff;
+                    }
+                }
+                int n = (y1 - y0) * (x1[x] - x0[x]);
+                out[row + x] = (a / n) << 24 | (r / n) << 16 | (g / n) << 8 | (b / n);
+            }
+        }
+    }
+}
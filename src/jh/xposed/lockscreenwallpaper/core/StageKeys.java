@@ -0,0 +1,67 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper.core;
+
+/**
+ * Keys of the background pipeline stages. The key of a stage chains the source key
+ * with the keys of every processor up to and including its own, so a cached stage
+ * output stays valid exactly as long as nothing upstream changed, and a change to
+ * one processor leaves the keys of the stages before it alone.
+ */
+public final class StageKeys {
+
+    private static final char SEPARATOR = '|';
+
+    private StageKeys() {
+    }
+
+    public static String scale(int maxWidth) {
+        return "scale:" + maxWidth;
+    }
+
+    public static String blur(int radius, String engine) {
+        return "blur:" + radius + "@" + engine;
+    }
+
+    public static String tint(int color) {
+        return "tint:" + Integer.toHexString(color);
+    }
+
+    public static String rotate(int degrees) {
+        return "rotate:" + degrees;
+    }
+
+    // keys[0] is sourceKey and keys[i] adds processorKeys[i - 1]
+    public static String[] chain(String sourceKey, String[] processorKeys) {
+        String[] keys = new String[processorKeys.length + 1];
+        keys[0] = sourceKey;
+        for (int i = 0; i < processorKeys.length; i++) {
+            keys[i + 1] = keys[i] + SEPARATOR + processorKeys[i];
+        }
+        return keys;
+    }
+
+    // Number of leading stages two chains share, the stages a run can take from the
+    // cache of the other
+    public static int sharedStages(String[] a, String[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            if (!a[i].equals(b[i])) return i;
+        }
+        return n;
+    }
+}
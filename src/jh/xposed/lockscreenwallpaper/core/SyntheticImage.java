@@ -0,0 +1,52 @@
+/**
+ * Copyright 2014 Jerry Hung
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jh.xposed.lockscreenwallpaper.core;
+
+/**
+ * Deterministic test content: smooth gradients with some noise and hard edges, so blur
+ * and scaling have both low and high frequencies to work on. The same seed gives the
+ * same pixels everywhere.
+ */
+public final class SyntheticImage {
+
+    private SyntheticImage() {
+    }
+
+    public static PixelBuffer create(int width, int height, long seed) {
+        PixelBuffer buffer = new PixelBuffer(width, height);
+        final int[] pixels = buffer.pixels;
+        long state = seed * 0x5deece66dL + 11;
+        for (int y = 0; y < height; y++) {
+            int gy = y * 255 / height;
+            boolean band = (y * 16 / height) % 2 == 0;
+            for (int x = 0; x < width; x++) {
+                state = state * 6364136223846793005L + 1442695040888963407L;
+                int noise = (int) (state >>> 59) - 16;
+                int gx = x * 255 / width;
+                int r = clamp(gx + noise);
+                int g = clamp(gy + noise);
+                int b = clamp((band ? 200 : 55) + noise);
+                pixels[y * width + x] = 0xff000000 | r << 16 | g << 8 | b;
+            }
+        }
+        return buffer;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+}